@@ -5,6 +5,7 @@ package okhttp3;
  */
 
 import java.io.IOException;
+import okio.Timeout;
 
 /**
  * 一个 call表示一个请求已经做好了被执行的准备。一个call可以被取消，
@@ -70,6 +71,17 @@ public interface Call extends Cloneable {
      */
     void enqueue(Callback responseCallback);
 
+    /**
+     * 异步请求，返回一个future
+     * Schedules the request to be executed at some point in the future, like {@link #enqueue}, and
+     * returns a future for its response. The {@linkplain OkHttpClient#dispatcher dispatcher}
+     * completes the future directly on the thread that executed the call. Canceling the future
+     * cancels this call.
+     *
+     * @throws IllegalStateException when the call has already been executed.
+     */
+    CallFuture executeAsync();
+
     /**
      * 取消一个请求，如果可以的话，请求早已完成，就不能再取消了
      * Cancels the request, if possible. Requests that are already complete cannot be canceled. */
@@ -85,6 +97,17 @@ public interface Call extends Cloneable {
 
     boolean isCanceled();
 
+    /**
+     * 返回整个调用的超时设置
+     * Returns a timeout that spans the entire call: resolving DNS, connecting, writing the request
+     * body, server processing, and reading the response body. If the call requires redirects or
+     * retries all must complete within one timeout period.
+     *
+     * <p>The default is {@link OkHttpClient#callTimeoutMillis()}. Configure it before the call is
+     * executed to change the timeout of this call alone.
+     */
+    Timeout timeout();
+
     /**
      * 创建一个新的请求，使用相同的参数即使已经请求过了
      * Create a new, identical call to this one which can be enqueued or executed even if this call
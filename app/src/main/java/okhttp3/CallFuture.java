@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * 异步调用的结果
+ * The pending result of a call {@linkplain Call#executeAsync() executed asynchronously}. The
+ * dispatcher completes it directly when the call's response or failure is ready.
+ *
+ * <p>{@linkplain #cancel Canceling} the future cancels the call. Use {@link #whenComplete} to act
+ * on the result without blocking a thread, and {@link #allOf} to wait for many calls at once.
+ *
+ * <p>To avoid leaking resources callers must close the {@link Response} that this future yields.
+ * If the future is canceled before the response arrives the response is closed automatically.
+ */
+public final class CallFuture implements Future<Response> {
+  private final Call call;
+
+  // Guarded by this.
+  private boolean done;
+  private boolean canceled;
+  private Response response;
+  private IOException failure;
+  private List<Callback> callbacks;
+
+  CallFuture(Call call) {
+    this.call = call;
+  }
+
+  public Call call() {
+    return call;
+  }
+
+  /**
+   * Registers {@code callback} to be called with this future's result. If the future is already
+   * complete the callback is invoked immediately on the calling thread; otherwise it is invoked
+   * on the thread that completes the future: the dispatcher's {@linkplain
+   * Dispatcher#setCallbackExecutor callback executor} if it has one, or else a dispatcher thread,
+   * in which case it should not block. If the future is
+   * canceled the callback receives a failure.
+   */
+  public void whenComplete(Callback callback) {
+    if (callback == null) throw new NullPointerException("callback == null");
+    synchronized (this) {
+      if (!done) {
+        if (callbacks == null) callbacks = new ArrayList<>(2);
+        callbacks.add(callback);
+        return;
+      }
+    }
+    deliverTo(callback);
+  }
+
+  /** Cancels the call. Returns false if the future was already complete. */
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    List<Callback> callbacks;
+    synchronized (this) {
+      if (done) return false;
+      canceled = true;
+      failure = new IOException("Canceled");
+      callbacks = finish();
+    }
+    call.cancel();
+    deliverTo(callbacks);
+    return true;
+  }
+
+  @Override public synchronized boolean isCancelled() {
+    return canceled;
+  }
+
+  @Override public synchronized boolean isDone() {
+    return done;
+  }
+
+  @Override public synchronized Response get() throws InterruptedException, ExecutionException {
+    while (!done) {
+      wait();
+    }
+    return result();
+  }
+
+  @Override public synchronized Response get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long remainingNanos = unit.toNanos(timeout);
+    long deadlineNanos = System.nanoTime() + remainingNanos;
+    while (!done) {
+      if (remainingNanos <= 0) throw new TimeoutException();
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+      remainingNanos = deadlineNanos - System.nanoTime();
+    }
+    return result();
+  }
+
+  private Response result() throws ExecutionException {
+    assert (Thread.holdsLock(this));
+    if (canceled) throw new CancellationException();
+    if (failure != null) throw new ExecutionException(failure);
+    return response;
+  }
+
+  /** Completes this future with {@code response}. Called when the call completes. */
+  void complete(Response response) {
+    List<Callback> callbacks;
+    synchronized (this) {
+      if (done) {
+        callbacks = null;
+      } else {
+        this.response = response;
+        response = null;
+        callbacks = finish();
+      }
+    }
+    if (response != null) {
+      closeQuietly(response); // The future was canceled. Nobody will read this response.
+      return;
+    }
+    deliverTo(callbacks);
+  }
+
+  /** Completes this future with {@code e}. Called when the call completes. */
+  void fail(IOException e) {
+    List<Callback> callbacks;
+    synchronized (this) {
+      if (done) return;
+      this.failure = e;
+      callbacks = finish();
+    }
+    deliverTo(callbacks);
+  }
+
+  /**
+   * Marks this future as done and wakes waiting threads. This must happen in the same critical
+   * section that stores the result, so that a response is never stored for a canceled future.
+   * Returns the callbacks to notify once the lock is released.
+   */
+  private List<Callback> finish() {
+    assert (Thread.holdsLock(this));
+    done = true;
+    List<Callback> callbacks = this.callbacks;
+    this.callbacks = null;
+    notifyAll();
+    return callbacks;
+  }
+
+  private void deliverTo(List<Callback> callbacks) {
+    if (callbacks == null) return;
+    for (Callback callback : callbacks) {
+      deliverTo(callback);
+    }
+  }
+
+  /** Hands this future's result to {@code callback}. */
+  private void deliverTo(Callback callback) {
+    Response response;
+    IOException failure;
+    synchronized (this) {
+      response = this.response;
+      failure = this.failure;
+    }
+    try {
+      if (failure != null) {
+        callback.onFailure(call, failure);
+      } else {
+        callback.onResponse(call, response);
+      }
+    } catch (IOException ignored) {
+      // Like the dispatcher, don't let a failing callback signal the call twice.
+    }
+  }
+
+  /**
+   * 返回一个在所有调用都完成后完成的future
+   * Returns a future that completes when every one of {@code futures} has completed. Its result
+   * lists the responses in the same order as {@code futures}. If any call is canceled {@link
+   * Future#get} throws a {@link CancellationException}; otherwise if any call fails it throws an
+   * {@link ExecutionException} with the first failure. In either case callers should close the
+   * responses of the calls that succeeded. Canceling the returned future cancels every call.
+   */
+  public static Future<List<Response>> allOf(List<CallFuture> futures) {
+    return new AllOf(futures);
+  }
+
+  /** Executes each of {@code calls} asynchronously and returns their futures in the same order. */
+  public static List<CallFuture> executeAllAsync(List<Call> calls) {
+    List<CallFuture> result = new ArrayList<>(calls.size());
+    for (Call call : calls) {
+      result.add(call.executeAsync());
+    }
+    return result;
+  }
+
+  private static final class AllOf implements Future<List<Response>>, Callback {
+    private final List<CallFuture> futures;
+
+    // Guarded by this.
+    private int remaining;
+    private IOException failure;
+
+    AllOf(List<CallFuture> futures) {
+      this.futures = Collections.unmodifiableList(new ArrayList<>(futures));
+      this.remaining = this.futures.size();
+      for (CallFuture future : this.futures) {
+        future.whenComplete(this);
+      }
+    }
+
+    @Override public synchronized void onFailure(Call call, IOException e) {
+      if (failure == null) failure = e;
+      if (--remaining == 0) notifyAll();
+    }
+
+    @Override public synchronized void onResponse(Call call, Response response) {
+      if (--remaining == 0) notifyAll();
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean result = false;
+      for (CallFuture future : futures) {
+        result |= future.cancel(mayInterruptIfRunning);
+      }
+      return result;
+    }
+
+    @Override public boolean isCancelled() {
+      for (CallFuture future : futures) {
+        if (future.isCancelled()) return true;
+      }
+      return false;
+    }
+
+    @Override public synchronized boolean isDone() {
+      return remaining == 0;
+    }
+
+    @Override public synchronized List<Response> get()
+        throws InterruptedException, ExecutionException {
+      while (remaining > 0) {
+        wait();
+      }
+      return result();
+    }
+
+    @Override public synchronized List<Response> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long remainingNanos = unit.toNanos(timeout);
+      long deadlineNanos = System.nanoTime() + remainingNanos;
+      while (remaining > 0) {
+        if (remainingNanos <= 0) throw new TimeoutException();
+        TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        remainingNanos = deadlineNanos - System.nanoTime();
+      }
+      return result();
+    }
+
+    private List<Response> result() throws ExecutionException {
+      if (isCancelled()) throw new CancellationException();
+      if (failure != null) throw new ExecutionException(failure);
+      List<Response> result = new ArrayList<>(futures.size());
+      for (CallFuture future : futures) {
+        synchronized (future) {
+          result.add(future.response);
+        }
+      }
+      return Collections.unmodifiableList(result);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+
+/**
+ * 当dispatcher的队列已满时，被拒绝或者被丢弃的异步调用会收到这个异常
+ * Signals that an {@linkplain Call#enqueue asynchronous call} never ran because the {@link
+ * Dispatcher}'s queue was full. Either the call was rejected when it was enqueued, or it was
+ * discarded from the queue to make room for a newer call. See {@link
+ * Dispatcher#setQueueFullPolicy}.
+ */
+public final class CallRejectedException extends IOException {
+  public CallRejectedException(String message) {
+    super(message);
+  }
+}
@@ -18,19 +18,23 @@ package okhttp3;
 
 import java.lang.ref.Reference;
 import java.net.Socket;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.internal.Util;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
 import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http2.Ping;
 import okhttp3.internal.platform.Platform;
 
 import static okhttp3.internal.Util.closeQuietly;
@@ -41,6 +45,14 @@ import static okhttp3.internal.Util.closeQuietly;
  * Manages reuse of HTTP and HTTP/2 connections for reduced network latency. HTTP requests that
  * share the same {@link Address} may share a {@link Connection}. This class implements the policy
  * of which connections to keep open for future use.
+ *
+ * <p>Calls don't lock the pool. They read its indexes, which are concurrent collections, and lock
+ * only the connections they consider, one at a time: each connection's state is guarded by the
+ * connection. The pool's own lock is only held to start, wake and stop the cleanup thread, so
+ * calls to different connections don't contend.
+ *
+ * <p>Locks are taken in this order: a call's stream allocation, the lock that deduplicates new
+ * HTTP/2 connections, a single connection, and then the host index or the pool's own lock.
  */
 public final class ConnectionPool {
   /**
@@ -54,6 +66,12 @@ public final class ConnectionPool {
       Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
       new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionPool", true));
 
+  /** How long a health check waits for an HTTP/2 ping to be answered. */
+  private static final long PING_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /** How soon after sending pings a health check looks for their answers. */
+  private static final long PING_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
   /**
    * 最大运行的空闲connections，对每个address
    * The maximum number of idle connections for each address. */
@@ -64,24 +82,86 @@ public final class ConnectionPool {
       while (true) {
         long waitNanos = cleanup(System.nanoTime());
         if (waitNanos == -1) return;
+        if (waitNanos > 0) waitNanos = Math.min(waitNanos, checkHealth(System.nanoTime()));
         if (waitNanos > 0) {
           long waitMillis = waitNanos / 1000000L;
+          long wakeAtNanos = System.nanoTime() + waitNanos;
           waitNanos -= (waitMillis * 1000000L);
           synchronized (ConnectionPool.this) {
+            // The pool changed after cleanup looked at it. Look again.
+            if (cleanupRequested) continue;
+            cleanupWakeAtNanos = wakeAtNanos;
             try {
               ConnectionPool.this.wait(waitMillis, (int) waitNanos);
             } catch (InterruptedException ignored) {
             }
+            cleanupWakeAtNanos = Long.MAX_VALUE;
           }
         }
       }
     }
   };
 
-  private final Deque<RealConnection> connections = new ArrayDeque<>();
+  private final Queue<RealConnection> connections = new ConcurrentLinkedQueue<>();
+
+  /**
+   * 按host索引的connections，这样获取connection时只需要查看同一个host的connections
+   * The same connections as {@link #connections}, indexed by the host of their address so that
+   * finding a connection for an address looks only at connections to that host. The lists are
+   * copied on write so calls can read them without locking. They're only written while holding the
+   * map's lock, which is never held while taking another lock.
+   */
+  private final Map<String, List<RealConnection>> hostConnections = new ConcurrentHashMap<>();
+
+  /**
+   * HTTP/2 connections, which may also carry calls to other hosts if they can be coalesced.
+   */
+  private final List<RealConnection> multiplexedConnections = new CopyOnWriteArrayList<>();
+
+  /** Held while pooling an HTTP/2 connection, so that concurrent calls pool only one of them. */
+  private final Object deduplicateLock = new Object();
+
+  private final Map<String, HostPolicy> hostPolicies = new ConcurrentHashMap<>();
+
   final RouteDatabase routeDatabase = new RouteDatabase();
+
+  /** Guarded by this. */
   boolean cleanupRunning;
 
+  /**
+   * 清理线程下次运行的时间
+   * When the sleeping cleanup thread will next run, or {@link Long#MAX_VALUE} while it is running.
+   * Connections that become idle only wake the thread if they need it sooner, so releasing a
+   * connection doesn't usually cost a scan of the whole pool, or even taking the pool's lock.
+   * Written only while holding the pool's lock.
+   */
+  private volatile long cleanupWakeAtNanos = Long.MAX_VALUE;
+
+  /**
+   * True if the pool changed in a way that the running cleanup may not have seen. Guarded by this.
+   */
+  private boolean cleanupRequested;
+
+  /**
+   * The number of idle connections. This is kept as connections are released and reused, and is
+   * recounted by every cleanup. It may be off when connections leave the pool in unusual ways or
+   * change while cleanup counts them, which costs only an extra cleanup.
+   */
+  private final AtomicInteger idleConnectionEstimate = new AtomicInteger();
+
+  /** How often idle connections are checked in the background, or 0 if they aren't. */
+  private volatile long healthCheckIntervalNs;
+
+  private volatile ReuseStrategy reuseStrategy = ReuseStrategy.OLDEST;
+
+  /** The HTTP/2 connections each host's streams are spread over before any is shared. */
+  private volatile int http2ConnectionsPerHost = 1;
+
+  /** The share of an HTTP/2 connection's stream limit it carries before another is opened. */
+  private volatile double http2MaxStreamUtilization = 1.0;
+
+  private volatile boolean http2WriteCoalescing;
+
   /**
    * 创建一个connection pool，默认的pool持有5个空闲的connections，若5分钟后还是空闲状态，那么connections就会清除
    * Create a new connection pool with tuning parameters appropriate for a single-user application.
@@ -103,13 +183,19 @@ public final class ConnectionPool {
     }
   }
 
+  int maxIdleConnections() {
+    return maxIdleConnections;
+  }
+
   /**
    * 返回本pool中空闲的connections数量
    * Returns the number of idle connections in the pool. */
-  public synchronized int idleConnectionCount() {
+  public int idleConnectionCount() {
     int total = 0;
     for (RealConnection connection : connections) {
-      if (connection.allocations.isEmpty()) total++;
+      synchronized (connection) {
+        if (connection.allocations.isEmpty()) total++;
+      }
     }
     return total;
   }
@@ -123,67 +209,373 @@ public final class ConnectionPool {
    * both active and inactive. Use {@link #idleConnectionCount()} to count connections not currently
    * in use.
    */
-  public synchronized int connectionCount() {
+  public int connectionCount() {
     return connections.size();
   }
 
+  /**
+   * 设置从pool中选择connection的策略
+   * Sets how the pool chooses between several connections that could carry a call. To use a
+   * different strategy for each client, give each client its own pool.
+   */
+  public void setReuseStrategy(ReuseStrategy reuseStrategy) {
+    if (reuseStrategy == null) throw new NullPointerException("reuseStrategy == null");
+    this.reuseStrategy = reuseStrategy;
+  }
+
+  public ReuseStrategy reuseStrategy() {
+    return reuseStrategy;
+  }
+
+  /**
+   * 设置每个host可以使用多少个HTTP/2 connections
+   * Lets calls open more than one HTTP/2 connection to a host, so that busy hosts aren't limited
+   * by one connection's stream limit or one TCP connection's throughput.
+   *
+   * <p>The first {@code connectionsPerHost} concurrent calls to a host each get a connection of
+   * their own. After that a call opens another connection only if every connection to the host
+   * carries at least {@code maxStreamUtilization} of its {@linkplain
+   * okhttp3.internal.http2.Http2Connection#maxConcurrentStreams stream limit}. A host's {@linkplain
+   * #setHostPolicy maximum connections} caps both, as calls share an HTTP/2 connection rather than
+   * open one beyond it. While this policy is active, calls go to the
+   * connection carrying the smallest share of its stream limit.
+   *
+   * <p>The default of one connection per host at full utilization shares a single connection.
+   */
+  public void setHttp2Policy(int connectionsPerHost, double maxStreamUtilization) {
+    if (connectionsPerHost < 1) {
+      throw new IllegalArgumentException("connectionsPerHost < 1: " + connectionsPerHost);
+    }
+    if (!(maxStreamUtilization > 0.0 && maxStreamUtilization <= 1.0)) {
+      throw new IllegalArgumentException("maxStreamUtilization not in (0, 1]: "
+          + maxStreamUtilization);
+    }
+    this.http2ConnectionsPerHost = connectionsPerHost;
+    this.http2MaxStreamUtilization = maxStreamUtilization;
+  }
+
+  public int http2ConnectionsPerHost() {
+    return http2ConnectionsPerHost;
+  }
+
+  public double http2MaxStreamUtilization() {
+    return http2MaxStreamUtilization;
+  }
+
+  /**
+   * 设置新的HTTP/2 connections是否用一个专门的线程写frames
+   * Gives each new HTTP/2 connection a thread of its own that writes its frames. Calls then only
+   * encode frames into memory, and the frames of all streams that accumulate while the thread is
+   * writing are sent with one flush. This helps connections carrying many concurrent small calls,
+   * at the cost of a thread per connection. Connections that are already open keep their mode.
+   * It is off by default.
+   */
+  public void setHttp2WriteCoalescing(boolean enabled) {
+    this.http2WriteCoalescing = enabled;
+  }
+
+  public boolean http2WriteCoalescing() {
+    return http2WriteCoalescing;
+  }
+
+  /**
+   * 设置后台检查空闲connections健康状况的间隔
+   * Checks idle connections in the background every {@code interval}, so that connections the
+   * server has closed are evicted before a call picks them. HTTP/1 connections are checked by
+   * peeking at the socket and HTTP/2 connections by sending a ping, which must be answered within 5
+   * seconds. A call that takes a connection checked within the last second, since it became idle,
+   * skips its own health check. The checks run on the pool's cleanup thread, which doesn't wait
+   * for pings to be answered. An interval of 0 disables them, which is the default.
+   */
+  public void setHealthCheckInterval(long interval, TimeUnit timeUnit) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0: " + interval);
+    healthCheckIntervalNs = timeUnit.toNanos(interval);
+    requestCleanup(Long.MIN_VALUE); // Checks may be due sooner.
+  }
+
+  public long healthCheckInterval(TimeUnit timeUnit) {
+    return timeUnit.convert(healthCheckIntervalNs, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * 为某个host设置连接策略
+   * Sets the policy for pooled connections to {@code host}, replacing any previous policy for it.
+   *
+   * @param minIdleConnections the number of idle connections to the host that are kept regardless
+   *     of their idle time or the pool's idle limit. The pool doesn't connect to reach this floor;
+   *     it only declines to evict below it.
+   * @param maxConnections the most connections, in use or idle, that the pool retains to the
+   *     host. This is a ceiling on what is kept, not on what is opened: calls still open as many
+   *     concurrent connections as they need, and the surplus is closed as each connection becomes
+   *     idle. To limit concurrent connections, limit {@linkplain
+   *     Dispatcher#setMaxRequestsPerHost requests per host}.
+   * @param keepAliveDuration how long idle connections to the host are kept, in place of the
+   *     pool's keep alive duration.
+   */
+  public void setHostPolicy(String host, int minIdleConnections, int maxConnections,
+      long keepAliveDuration, TimeUnit timeUnit) {
+    HostPolicy policy = new HostPolicy(
+        host, minIdleConnections, maxConnections, timeUnit.toNanos(keepAliveDuration));
+    hostPolicies.put(policy.host, policy);
+    requestCleanup(Long.MIN_VALUE); // Connections may now be evictable.
+  }
+
+  /** Removes the policy for {@code host}. Returns false if it had none. */
+  public boolean removeHostPolicy(String host) {
+    boolean removed = hostPolicies.remove(host) != null;
+    if (removed) requestCleanup(Long.MIN_VALUE);
+    return removed;
+  }
+
+  /** Returns the policy for {@code host}, or null if it uses the pool's defaults. */
+  public HostPolicy hostPolicy(String host) {
+    return hostPolicies.get(host);
+  }
+
+  /** Returns the most connections the pool keeps to {@code host}. */
+  int maxConnections(String host) {
+    HostPolicy policy = hostPolicies.get(host);
+    return policy != null ? policy.maxConnections : Integer.MAX_VALUE;
+  }
+
   /**
    * 返回{@code address}的被回收的connection，如果这这个connection不存在就返回null。
    * 这里的route为null，如果这个address只i请按没有被连接过
    * Returns a recycled connection to {@code address}, or null if no such connection exists. The
-   * route is null if the address has not yet been routed.
+   * route is null if the address has not yet been routed. Callers must be synchronized on {@code
+   * streamAllocation}, which acquires the returned connection.
    */
   RealConnection get(Address address, StreamAllocation streamAllocation, Route route) {
-    assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
-      if (connection.isEligible(address, route)) {
-        streamAllocation.acquire(connection);
-        return connection;
+    assert (Thread.holdsLock(streamAllocation));
+    RealConnection result = null;
+    List<RealConnection> sameHost = hostConnections.get(address.url().host());
+    int http2Count = http2PolicyActive() ? http2ConnectionCount(sameHost, null) : -1;
+    if (sameHost != null) {
+      result = select(sameHost, address, streamAllocation, route, http2Count);
+    }
+
+    // Connections to other hosts can only be coalesced once the address has been routed, and only
+    // if they're HTTP/2.
+    if (result == null && route != null) {
+      result = select(multiplexedConnections, address, streamAllocation, route, http2Count);
+    }
+    return result;
+  }
+
+  /**
+   * Acquires the connection in {@code candidates} that the reuse strategy prefers and returns it,
+   * or null if none can carry the call. If the HTTP/2 policy is active {@code http2Count} is the
+   * number of HTTP/2 connections to the host and the least loaded connection is preferred;
+   * otherwise it is -1.
+   */
+  private RealConnection select(List<RealConnection> candidates, Address address,
+      StreamAllocation streamAllocation, Route route, int http2Count) {
+    ReuseStrategy strategy = http2Count != -1 ? ReuseStrategy.LEAST_LOADED : reuseStrategy;
+    while (true) {
+      RealConnection best = null;
+      long bestRank = Long.MAX_VALUE;
+      for (RealConnection connection : candidates) {
+        synchronized (connection) {
+          if (!canCarry(connection, address, streamAllocation, route, http2Count)) continue;
+          if (strategy == ReuseStrategy.OLDEST) return acquire(streamAllocation, connection);
+          long rank = strategy.rank(connection);
+          if (best == null || rank < bestRank) {
+            best = connection;
+            bestRank = rank;
+          }
+        }
+      }
+      if (best == null) return null;
+
+      // Another call may have taken the connection since we ranked it. If so, look again.
+      synchronized (best) {
+        if (canCarry(best, address, streamAllocation, route, http2Count)) {
+          return acquire(streamAllocation, best);
+        }
       }
     }
-    return null;
+  }
+
+  private boolean canCarry(RealConnection connection, Address address,
+      StreamAllocation streamAllocation, Route route, int http2Count) {
+    return connection.isEligible(address, route)
+        && !streamAllocation.avoids(connection)
+        && (http2Count == -1 || acceptsStream(connection, address.url().host(), http2Count));
+  }
+
+  private RealConnection acquire(StreamAllocation streamAllocation, RealConnection connection) {
+    if (connection.allocations.isEmpty()) idleConnectionEstimate.decrementAndGet();
+    streamAllocation.acquire(connection);
+    return connection;
+  }
+
+  private boolean http2PolicyActive() {
+    return http2ConnectionsPerHost > 1 || http2MaxStreamUtilization < 1.0;
+  }
+
+  /** Returns the number of HTTP/2 connections in {@code sameHost} that take new streams. */
+  private int http2ConnectionCount(List<RealConnection> sameHost, RealConnection except) {
+    if (sameHost == null) return 0;
+    int result = 0;
+    for (RealConnection connection : sameHost) {
+      if (!connection.isMultiplexed() || connection == except) continue;
+      synchronized (connection) {
+        if (!connection.noNewStreams) result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if the HTTP/2 policy lets {@code connection} take another stream rather than have
+   * the call open a new connection to {@code host}, which has {@code http2Count} HTTP/2
+   * connections.
+   */
+  private boolean acceptsStream(RealConnection connection, String host, int http2Count) {
+    assert (Thread.holdsLock(connection));
+    if (!connection.isMultiplexed()) return true;
+    int streams = connection.allocations.size();
+    if (streams == 0) return true;
+
+    // Don't open more connections than the host's policy allows.
+    HostPolicy policy = hostPolicies.get(host);
+    if (policy != null && http2Count >= policy.maxConnections) return true;
+
+    if (http2Count < http2ConnectionsPerHost) return false;
+    return streams < http2MaxStreamUtilization * connection.allocationLimit;
   }
 
   /**
    * 如果可能的话将一个{@code streamAllocation}持有的connection用一个共享的connection替代
    * 当同时创建多个connections的时候，会被调用
-   * Replaces the connection held by {@code streamAllocation} with a shared connection if possible.
-   * This recovers when multiple multiplexed connections are created concurrently.
+   * Replaces the new multiplexed connection held by {@code streamAllocation} with a shared
+   * connection if possible, or else pools it. This recovers when multiple multiplexed connections
+   * are created concurrently. Callers must be synchronized on {@code streamAllocation}.
    */
   Socket deduplicate(Address address, StreamAllocation streamAllocation) {
-    assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
-      if (connection.isEligible(address, null)
-          && connection.isMultiplexed()
-          && connection != streamAllocation.connection()) {
-        return streamAllocation.releaseAndAcquire(connection);
+    assert (Thread.holdsLock(streamAllocation));
+    RealConnection held = streamAllocation.connection();
+    RealConnection shared = null;
+    synchronized (deduplicateLock) {
+      // Without a route only connections to the same host are eligible.
+      List<RealConnection> sameHost = hostConnections.get(address.url().host());
+      // The HTTP/2 policy may have asked for this connection. Count the others to find out.
+      int http2Count = http2PolicyActive() ? http2ConnectionCount(sameHost, held) : -1;
+      if (sameHost != null) {
+        for (RealConnection connection : sameHost) {
+          if (!connection.isMultiplexed()) continue;
+          synchronized (connection) {
+            if (connection.isEligible(address, null)
+                && (http2Count == -1
+                || acceptsStream(connection, address.url().host(), http2Count))) {
+              if (connection.allocations.isEmpty()) idleConnectionEstimate.decrementAndGet();
+              streamAllocation.acquireShared(connection);
+              shared = connection;
+              break;
+            }
+          }
+        }
+      }
+
+      if (shared == null) {
+        synchronized (held) {
+          put(held);
+        }
+        return null;
       }
     }
-    return null;
+
+    // Release the duplicate only after the shared connection's lock is released.
+    return streamAllocation.releaseAndAcquire(shared);
   }
 
+  /** Adds {@code connection} to the pool. Callers must be synchronized on the connection. */
   void put(RealConnection connection) {
-    assert (Thread.holdsLock(this));
-    if (!cleanupRunning) {
-      cleanupRunning = true;
-      executor.execute(cleanupRunnable);
-    }
+    assert (Thread.holdsLock(connection));
     connections.add(connection);
+    String host = connection.route().address().url().host();
+    synchronized (hostConnections) {
+      List<RealConnection> sameHost = hostConnections.get(host);
+      if (sameHost == null) {
+        sameHost = new CopyOnWriteArrayList<>();
+        hostConnections.put(host, sameHost);
+      }
+      sameHost.add(connection);
+    }
+    if (connection.isMultiplexed()) multiplexedConnections.add(connection);
+
+    // Start cleanup after adding the connection so that a cleanup that's finishing either sees the
+    // connection or lets us start another.
+    synchronized (this) {
+      if (!cleanupRunning) {
+        cleanupRunning = true;
+        executor.execute(cleanupRunnable);
+      }
+    }
+  }
+
+  /**
+   * Removes {@code connection} from the pool and its indexes. Returns false if it wasn't pooled,
+   * either because it never was or because another thread removed it first.
+   */
+  private boolean remove(RealConnection connection) {
+    if (!connections.remove(connection)) return false;
+    String host = connection.route().address().url().host();
+    synchronized (hostConnections) {
+      List<RealConnection> sameHost = hostConnections.get(host);
+      if (sameHost != null && sameHost.remove(connection) && sameHost.isEmpty()) {
+        hostConnections.remove(host);
+      }
+    }
+    if (connection.isMultiplexed()) multiplexedConnections.remove(connection);
+    return true;
+  }
+
+  /**
+   * Returns true if the pool holds more connections to {@code connection}'s host than its policy
+   * retains. This is only checked as connections become idle; it never stops a call connecting.
+   */
+  private boolean exceedsMaxConnections(RealConnection connection) {
+    String host = connection.route().address().url().host();
+    HostPolicy policy = hostPolicies.get(host);
+    if (policy == null) return false;
+    List<RealConnection> sameHost = hostConnections.get(host);
+    return sameHost != null && sameHost.size() > policy.maxConnections;
   }
 
   /**
    * 通知这个pool{@code connection}已经变成空闲的了。返回true如果connection已经从pool中移除了，并且应该被关闭
    * Notify this pool that {@code connection} has become idle. Returns true if the connection has
-   * been removed from the pool and should be closed.
+   * been removed from the pool and should be closed. Callers must be synchronized on the
+   * connection.
    */
   boolean connectionBecameIdle(RealConnection connection) {
-    assert (Thread.holdsLock(this));
-    if (connection.noNewStreams || maxIdleConnections == 0) {
-      connections.remove(connection);
+    assert (Thread.holdsLock(connection));
+    if (connection.noNewStreams || maxIdleConnections == 0 || exceedsMaxConnections(connection)) {
+      connection.noNewStreams = true; // Calls that found it in the pool mustn't take it.
+      remove(connection);
       return true;
+    }
+
+    if (idleConnectionEstimate.incrementAndGet() > maxIdleConnections) {
+      requestCleanup(Long.MIN_VALUE); // We may have exceeded the idle connection limit.
     } else {
-      notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
-      return false;
+      HostPolicy policy = hostPolicies.get(connection.route().address().url().host());
+      long untilDueNs = policy != null ? policy.keepAliveDurationNs : keepAliveDurationNs;
+      if (healthCheckIntervalNs != 0) untilDueNs = Math.min(untilDueNs, healthCheckIntervalNs);
+      requestCleanup(connection.idleAtNanos + untilDueNs);
+    }
+    return false;
+  }
+
+  /** Wakes the cleanup thread unless it's already due to run by {@code deadlineNanos}. */
+  private void requestCleanup(long deadlineNanos) {
+    if (deadlineNanos >= cleanupWakeAtNanos) return; // Don't lock the pool if we don't need to.
+    synchronized (this) {
+      if (deadlineNanos < cleanupWakeAtNanos) {
+        cleanupRequested = true;
+        notifyAll();
+      }
     }
   }
 
@@ -192,14 +584,14 @@ public final class ConnectionPool {
    * Close and remove all idle connections in the pool. */
   public void evictAll() {
     List<RealConnection> evictedConnections = new ArrayList<>();
-    synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
-        if (connection.allocations.isEmpty()) {
-          connection.noNewStreams = true;
-          evictedConnections.add(connection);
-          i.remove();
-        }
+    for (RealConnection connection : connections) {
+      synchronized (connection) {
+        if (!connection.allocations.isEmpty()) continue;
+        connection.noNewStreams = true;
+      }
+      if (remove(connection)) {
+        evictedConnections.add(connection);
+        idleConnectionEstimate.decrementAndGet();
       }
     }
 
@@ -210,64 +602,305 @@ public final class ConnectionPool {
 
   /**
    * 对该pool进行维护，将空闲的connection移除，如果其空闲的时间已经超过了限制，或者空闲的连接数超过了限制。
-   * Performs maintenance on this pool, evicting the connection that has been idle the longest if
-   * either it has exceeded the keep alive limit or the idle connections limit.
+   * Performs maintenance on this pool, evicting at most one idle connection. In order of
+   * preference it evicts:
+   *
+   * <ol>
+   *   <li>An idle connection that can't carry new streams, such as one whose calls were leaked.
+   *   <li>An idle connection to the host that exceeds its {@linkplain HostPolicy#maxConnections
+   *       maximum} by the most.
+   *   <li>The connection that has been idle longest past its host's keep alive duration.
+   *   <li>If there are more idle connections than {@code maxIdleConnections}, the longest idle
+   *       connection to the host with the most idle connections above its floor.
+   * </ol>
    *
+   * <p>Idle connections within a host's {@linkplain HostPolicy#minIdleConnections floor} are never
+   * evicted and don't count against {@code maxIdleConnections}.
    *
    * <p>Returns the duration in nanos to sleep until the next scheduled call to this method. Returns
    * -1 if no further cleanups are required.
    */
   long cleanup(long now) {
-    int inUseConnectionCount = 0;
-    int idleConnectionCount = 0;
-    RealConnection longestIdleConnection = null;
-    long longestIdleDurationNs = Long.MIN_VALUE;
+    int idleConnections = 0;
+    int evictableIdleCount = 0;
+    RealConnection leakedConnection = null;
+    long leakedIdleAtNanos = 0L;
+    RealConnection overMaxConnection = null;
+    long overMaxIdleAtNanos = 0L;
+    int largestExcess = 0;
+    RealConnection expiredConnection = null;
+    long expiredIdleAtNanos = 0L;
+    long longestOverdueNs = Long.MIN_VALUE;
+    RealConnection overProvisionedConnection = null;
+    long overProvisionedIdleAtNanos = 0L;
+    int mostEvictableIdle = 0;
+    long nextEvictionNs = Long.MAX_VALUE;
 
-    // Find either a connection to evict, or the time that the next eviction is due.
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
+      cleanupRequested = false;
+      if (connections.isEmpty()) {
+        // No connections, idle or in use.
+        cleanupRunning = false;
+        return -1;
+      }
+    }
 
-        // If the connection is in use, keep searching.
-        if (pruneAndGetAllocationCount(connection, now) > 0) {
-          inUseConnectionCount++;
-          continue;
-        }
+    // Find either a connection to evict, or the time that the next eviction is due.
+    for (Map.Entry<String, List<RealConnection>> entry : hostConnections.entrySet()) {
+      HostPolicy policy = hostPolicies.get(entry.getKey());
+      int minIdle = policy != null ? policy.minIdleConnections : 0;
+      int maxConnections = policy != null ? policy.maxConnections : Integer.MAX_VALUE;
+      long keepAliveNs = policy != null ? policy.keepAliveDurationNs : keepAliveDurationNs;
+
+      List<RealConnection> sameHost = entry.getValue();
+      int connectionCount = 0;
+      int idleCount = 0;
+      RealConnection longestIdle = null;
+      long longestIdleAtNanos = Long.MAX_VALUE;
+      for (RealConnection connection : sameHost) {
+        connectionCount++;
+        long idleAtNanos;
+        synchronized (connection) {
+          // If the connection is in use, keep searching.
+          if (pruneAndGetAllocationCount(connection, now) > 0) continue;
 
-        idleConnectionCount++;
+          idleConnections++;
+          idleAtNanos = connection.idleAtNanos;
 
-        // If the connection is ready to be evicted, we're done.
-        long idleDurationNs = now - connection.idleAtNanos;
-        if (idleDurationNs > longestIdleDurationNs) {
-          longestIdleDurationNs = idleDurationNs;
-          longestIdleConnection = connection;
+          // A leaked connection can't carry new streams. Evict it before anything else.
+          if (connection.noNewStreams) {
+            leakedConnection = connection;
+            leakedIdleAtNanos = idleAtNanos;
+            continue;
+          }
+        }
+
+        idleCount++;
+        if (longestIdle == null || idleAtNanos < longestIdleAtNanos) {
+          longestIdleAtNanos = idleAtNanos;
+          longestIdle = connection;
         }
       }
 
-      if (longestIdleDurationNs >= this.keepAliveDurationNs
-          || idleConnectionCount > this.maxIdleConnections) {
-        // We've found a connection to evict. Remove it from the list, then close it below (outside
-        // of the synchronized block).
-        connections.remove(longestIdleConnection);
-      } else if (idleConnectionCount > 0) {
-        // A connection will be ready to evict soon.
-        return keepAliveDurationNs - longestIdleDurationNs;
-      } else if (inUseConnectionCount > 0) {
-        // All connections are in use. It'll be at least the keep alive duration 'til we run again.
-        return keepAliveDurationNs;
-      } else {
-        // No connections, idle or in use.
-        cleanupRunning = false;
-        return -1;
+      int evictable = idleCount - minIdle;
+      if (evictable <= 0) continue;
+      evictableIdleCount += evictable;
+
+      int excess = connectionCount - maxConnections;
+      if (excess > largestExcess) {
+        largestExcess = excess;
+        overMaxConnection = longestIdle;
+        overMaxIdleAtNanos = longestIdleAtNanos;
+      }
+      long overdueNs = now - longestIdleAtNanos - keepAliveNs;
+      if (overdueNs >= 0 && overdueNs > longestOverdueNs) {
+        longestOverdueNs = overdueNs;
+        expiredConnection = longestIdle;
+        expiredIdleAtNanos = longestIdleAtNanos;
+      }
+      if (evictable > mostEvictableIdle) {
+        mostEvictableIdle = evictable;
+        overProvisionedConnection = longestIdle;
+        overProvisionedIdleAtNanos = longestIdleAtNanos;
       }
+      nextEvictionNs = Math.min(nextEvictionNs, -overdueNs);
     }
 
-    closeQuietly(longestIdleConnection.socket());
+    // Calls change the count while we make it. Any that push it past the limit request another
+    // cleanup, which counts again.
+    idleConnectionEstimate.set(idleConnections);
+
+    RealConnection evicted;
+    long evictedIdleAtNanos;
+    if (leakedConnection != null) {
+      evicted = leakedConnection;
+      evictedIdleAtNanos = leakedIdleAtNanos;
+    } else if (overMaxConnection != null) {
+      evicted = overMaxConnection;
+      evictedIdleAtNanos = overMaxIdleAtNanos;
+    } else if (expiredConnection != null) {
+      evicted = expiredConnection;
+      evictedIdleAtNanos = expiredIdleAtNanos;
+    } else if (evictableIdleCount > maxIdleConnections) {
+      evicted = overProvisionedConnection;
+      evictedIdleAtNanos = overProvisionedIdleAtNanos;
+    } else if (evictableIdleCount > 0) {
+      // A connection will be ready to evict soon.
+      return nextEvictionNs;
+    } else {
+      // All connections are in use or kept warm. It'll be at least the keep alive duration 'til
+      // we run again.
+      return keepAliveDurationNs;
+    }
+
+    // We've found a connection to evict. If a call used it since we looked, look again. Otherwise
+    // stop calls from taking it, remove it from the pool, then close it below.
+    synchronized (evicted) {
+      if (!evicted.allocations.isEmpty() || evicted.idleAtNanos != evictedIdleAtNanos) return 0;
+      evicted.noNewStreams = true;
+    }
+    if (!remove(evicted)) return 0;
+    idleConnectionEstimate.decrementAndGet();
+
+    closeQuietly(evicted.socket());
 
     // Cleanup again immediately.
     return 0;
   }
 
+  /**
+   * 检查空闲的connections是否还可以使用，移除已经失效的
+   * Checks the idle connections that haven't been checked for the health check interval, evicting
+   * those that are dead. HTTP/1 connections are held out of the pool while their socket is probed.
+   * HTTP/2 connections are sent a ping and this returns without waiting for it: the answer is
+   * collected by a later check, and a connection whose ping goes unanswered for 5 seconds is dead.
+   *
+   * <p>Returns the duration in nanos until the next check is due, or {@link Long#MAX_VALUE} if no
+   * checks are scheduled.
+   */
+  long checkHealth(long now) {
+    long intervalNs = healthCheckIntervalNs;
+    if (intervalNs == 0) return Long.MAX_VALUE;
+
+    List<RealConnection> due = null;
+    List<RealConnection> pinged = null;
+    List<Ping> pendingPings = null;
+    List<Long> pendingPingsAtNanos = null;
+    long nextCheckNs = Long.MAX_VALUE;
+    for (RealConnection connection : connections) {
+      synchronized (connection) {
+        if (connection.healthCheckPing != null) {
+          if (pinged == null) {
+            pinged = new ArrayList<>();
+            pendingPings = new ArrayList<>();
+            pendingPingsAtNanos = new ArrayList<>();
+          }
+          pinged.add(connection);
+          pendingPings.add(connection.healthCheckPing);
+          pendingPingsAtNanos.add(connection.healthCheckPingAtNanos);
+          continue;
+        }
+        if (!connection.allocations.isEmpty() || connection.noNewStreams) continue;
+        long checkedAtNanos = Math.max(connection.idleAtNanos, connection.healthyAtNanos);
+        long untilDueNs = checkedAtNanos + intervalNs - now;
+        if (untilDueNs > 0) {
+          nextCheckNs = Math.min(nextCheckNs, untilDueNs);
+          continue;
+        }
+        if (due == null) due = new ArrayList<>();
+        due.add(connection);
+        if (!connection.isMultiplexed()) connection.healthCheckInProgress = true;
+      }
+    }
+    if (due == null && pinged == null) return nextCheckNs;
+
+    // Collect the answers to earlier pings. Unanswered pings that have time left stay pending.
+    List<RealConnection> healthy = new ArrayList<>();
+    List<Long> healthyAtNanos = new ArrayList<>();
+    List<RealConnection> dead = new ArrayList<>();
+    List<RealConnection> answered = new ArrayList<>();
+    if (pinged != null) {
+      for (int i = 0, size = pinged.size(); i < size; i++) {
+        RealConnection connection = pinged.get(i);
+        long pingAtNanos = pendingPingsAtNanos.get(i);
+        long roundTripNanos = pollPing(pendingPings.get(i));
+        long pendingNs = pingAtNanos + PING_TIMEOUT_NANOS - now;
+        if (roundTripNanos == -2L && pendingNs > 0) {
+          nextCheckNs = Math.min(nextCheckNs, Math.min(pendingNs, PING_POLL_NANOS));
+          continue;
+        }
+        answered.add(connection);
+        if (roundTripNanos >= 0) {
+          healthy.add(connection);
+          healthyAtNanos.add(pingAtNanos + roundTripNanos);
+        } else {
+          dead.add(connection);
+        }
+      }
+    }
+
+    // Send pings and probe sockets for the connections that are due.
+    List<RealConnection> sent = new ArrayList<>();
+    List<Ping> pings = new ArrayList<>();
+    if (due != null) {
+      for (RealConnection connection : due) {
+        if (connection.isMultiplexed()) {
+          Ping ping = connection.ping();
+          if (ping == null) {
+            dead.add(connection);
+          } else {
+            sent.add(connection);
+            pings.add(ping);
+            nextCheckNs = Math.min(nextCheckNs, PING_POLL_NANOS);
+          }
+        } else if (connection.isHealthy(true)) {
+          healthy.add(connection);
+          healthyAtNanos.add(System.nanoTime());
+        } else {
+          dead.add(connection);
+        }
+      }
+    }
+
+    // Mark dead connections before releasing the ones we held, so that calls can't take them.
+    List<RealConnection> evictedConnections = null;
+    for (RealConnection connection : dead) {
+      boolean idle;
+      synchronized (connection) {
+        connection.noNewStreams = true;
+        idle = connection.allocations.isEmpty();
+      }
+      if (idle && remove(connection)) {
+        idleConnectionEstimate.decrementAndGet();
+        if (evictedConnections == null) evictedConnections = new ArrayList<>();
+        evictedConnections.add(connection);
+      }
+    }
+    for (RealConnection connection : answered) {
+      synchronized (connection) {
+        connection.healthCheckPing = null;
+      }
+    }
+    for (int i = 0, size = sent.size(); i < size; i++) {
+      RealConnection connection = sent.get(i);
+      synchronized (connection) {
+        connection.healthCheckPing = pings.get(i);
+        connection.healthCheckPingAtNanos = now;
+      }
+    }
+    for (int i = 0, size = healthy.size(); i < size; i++) {
+      RealConnection connection = healthy.get(i);
+      synchronized (connection) {
+        connection.healthyAtNanos = healthyAtNanos.get(i);
+      }
+    }
+    if (due != null) {
+      for (RealConnection connection : due) {
+        synchronized (connection) {
+          connection.healthCheckInProgress = false;
+        }
+      }
+    }
+
+    if (evictedConnections != null) {
+      for (RealConnection connection : evictedConnections) {
+        closeQuietly(connection.socket());
+      }
+      return 0; // Evicting may have changed what cleanup should do next.
+    }
+
+    return Math.min(nextCheckNs, intervalNs);
+  }
+
+  /** Returns the round trip time of {@code ping}, -1 if it was canceled or -2 if it is pending. */
+  private static long pollPing(Ping ping) {
+    try {
+      return ping.roundTripTime(0L, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      return -2L; // Like the cleanup thread's wait, ignore interruption and look again later.
+    }
+  }
+
   /**
    * 删除任何已经泄漏的内存分配，然后返回目前还存活的{@code connection}数量。
    * 当应用的代码中已经不会再使用这个connection的时候，表示这个connection已经泄漏了。
@@ -275,9 +908,10 @@ public final class ConnectionPool {
    * Prunes any leaked allocations and then returns the number of remaining live allocations on
    * {@code connection}. Allocations are leaked if the connection is tracking them but the
    * application code has abandoned them. Leak detection is imprecise and relies on garbage
-   * collection.
+   * collection. Callers must be synchronized on the connection.
    */
   private int pruneAndGetAllocationCount(RealConnection connection, long now) {
+    assert (Thread.holdsLock(connection));
     List<Reference<StreamAllocation>> references = connection.allocations;
     for (int i = 0; i < references.size(); ) {
       Reference<StreamAllocation> reference = references.get(i);
@@ -306,4 +940,103 @@ public final class ConnectionPool {
 
     return references.size();
   }
+
+  /** How the pool chooses between several connections that could carry a call. */
+  public enum ReuseStrategy {
+    /** The connection that was pooled first. This is the default and is the cheapest. */
+    OLDEST {
+      @Override long rank(RealConnection connection) {
+        return 0L;
+      }
+    },
+
+    /**
+     * The connection that was used most recently, preferring connections already carrying
+     * streams. Surplus connections stay idle until they expire, which keeps the pool small.
+     */
+    MOST_RECENTLY_USED {
+      @Override long rank(RealConnection connection) {
+        return -lastUsedNanos(connection);
+      }
+    },
+
+    /** The connection that has been idle longest. This spreads calls across every connection. */
+    LEAST_RECENTLY_USED {
+      @Override long rank(RealConnection connection) {
+        return lastUsedNanos(connection);
+      }
+    },
+
+    /**
+     * The connection carrying the smallest share of its stream limit. This spreads HTTP/2 streams
+     * across connections. Ties go to the connection that was pooled first.
+     */
+    LEAST_LOADED {
+      @Override long rank(RealConnection connection) {
+        // The share of the stream limit in use, in fixed point. Eligible connections have a limit.
+        return ((long) connection.allocations.size() << 32) / connection.allocationLimit;
+      }
+    };
+
+    /**
+     * Returns how strongly this strategy prefers {@code connection} to carry the next call, lowest
+     * first. Ties go to the connection that was pooled first. Callers must be synchronized on the
+     * connection; connections are ranked one at a time so that no call locks two.
+     */
+    abstract long rank(RealConnection connection);
+
+    /** A connection carrying streams is in use right now. */
+    static long lastUsedNanos(RealConnection connection) {
+      return connection.allocations.isEmpty() ? connection.idleAtNanos : Long.MAX_VALUE;
+    }
+  }
+
+  /** Limits on the pooled connections to one host. */
+  public static final class HostPolicy {
+    final String host;
+    final int minIdleConnections;
+    final int maxConnections;
+    final long keepAliveDurationNs;
+
+    HostPolicy(String host, int minIdleConnections, int maxConnections, long keepAliveDurationNs) {
+      HttpUrl url = HttpUrl.parse("http://" + host);
+      if (url == null) throw new IllegalArgumentException("unexpected host: " + host);
+      if (minIdleConnections < 0) {
+        throw new IllegalArgumentException("minIdleConnections < 0: " + minIdleConnections);
+      }
+      if (maxConnections < minIdleConnections) {
+        throw new IllegalArgumentException(
+            "maxConnections < minIdleConnections: " + maxConnections);
+      }
+      // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
+      if (keepAliveDurationNs <= 0) {
+        throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDurationNs);
+      }
+      this.host = url.host();
+      this.minIdleConnections = minIdleConnections;
+      this.maxConnections = maxConnections;
+      this.keepAliveDurationNs = keepAliveDurationNs;
+    }
+
+    public String host() {
+      return host;
+    }
+
+    public int minIdleConnections() {
+      return minIdleConnections;
+    }
+
+    public int maxConnections() {
+      return maxConnections;
+    }
+
+    public long keepAliveDuration(TimeUnit timeUnit) {
+      return timeUnit.convert(keepAliveDurationNs, TimeUnit.NANOSECONDS);
+    }
+
+    @Override public String toString() {
+      return host + " idle>=" + minIdleConnections + " connections<=" + maxConnections
+          + " keepAlive=" + TimeUnit.NANOSECONDS.toMillis(keepAliveDurationNs) + "ms";
+    }
+  }
 }
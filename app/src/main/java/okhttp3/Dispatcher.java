@@ -15,16 +15,24 @@
  */
 package okhttp3;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import okhttp3.RealCall.AsyncCall;
 import okhttp3.internal.Util;
 
@@ -38,9 +46,58 @@ import okhttp3.internal.Util;
  * of calls concurrently.
  */
 public final class Dispatcher {
+  /** The number of hosts whose adaptive limits are remembered while they are idle. */
+  static final int MAX_REMEMBERED_HOSTS = 256;
+
+  /**
+   * 后台线程，在限流的host重新获得令牌时唤醒它们
+   * Background threads wake rate limited hosts when their buckets refill. There is at most one
+   * such thread per dispatcher, and only while a host is waiting for a permit.
+   */
+  private static final Executor throttleExecutor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher Throttle", true));
+
   private int maxRequests = 64;
   private int maxRequestsPerHost = 5;
+  private long priorityAgingNanos = TimeUnit.SECONDS.toNanos(1);
+  private boolean fairScheduling;
+  private boolean adaptiveMaxRequestsPerHost;
+  private int maxQueuedRequests = Integer.MAX_VALUE;
+  private int maxQueuedRequestsPerHost = Integer.MAX_VALUE;
+  private QueueFullPolicy queueFullPolicy = QueueFullPolicy.REJECT;
   private Runnable idleCallback;
+  private Executor callbackExecutor;
+
+  /**
+   * 按host模式设置的限流，按照设置的顺序
+   * Rate limits by host pattern, in the order they were set. */
+  private final Map<String, TokenBucket> rateLimits = new LinkedHashMap<>();
+
+  /**
+   * 等待令牌的host
+   * Hosts whose ready calls are waiting for a permit from their rate limit. */
+  private final Set<HostCalls> throttledHosts = new LinkedHashSet<>();
+  private boolean throttleRunning;
+  private final Runnable throttleRunnable = new Runnable() {
+    @Override public void run() {
+      synchronized (Dispatcher.this) {
+        while (true) {
+          long waitNanos = releaseThrottledHosts(System.nanoTime());
+          if (waitNanos == -1L) {
+            throttleRunning = false;
+            return;
+          }
+          long waitMillis = waitNanos / 1000000L;
+          waitNanos -= (waitMillis * 1000000L);
+          try {
+            Dispatcher.this.wait(waitMillis, (int) waitNanos);
+          } catch (InterruptedException ignored) {
+          }
+        }
+      }
+    }
+  };
 
   /**
    * 懒创建
@@ -48,19 +105,65 @@ public final class Dispatcher {
   private ExecutorService executorService;
 
   /**
-   * 准备异步调用。
-   * Ready async calls in the order they'll be run. */
-  private final Deque<AsyncCall> readyAsyncCalls = new ArrayDeque<>();
+   * 按host索引的异步调用，包括每个host正在运行的数量和准备运行的队列
+   * Async calls indexed by host: each host's running count and its ready calls ordered by
+   * {@linkplain Priority priority} and age. Hosts are dropped once they have neither running nor ready calls.
+   */
+  private final Map<String, HostCalls> hostCalls = new HashMap<>();
+
+  /**
+   * Adaptive limits by host, least recently used first. Unlike {@link #hostCalls} these outlive a
+   * host's calls so that a host that goes idle between bursts keeps what was learned about it.
+   * Null until limits are {@linkplain #setAdaptiveMaxRequestsPerHost adaptive}.
+   */
+  private Map<String, HostLimit> hostLimits;
+
+  /**
+   * 有准备调用并且还有空余容量的host，按照最早的准备调用排序
+   * Hosts that have a ready call and spare per-host capacity, ordered so that the host holding
+   * the next call to run comes first, or in turn if {@linkplain #setFairScheduling scheduling is
+   * fair}. Promotion takes from the head without scanning calls that are blocked on a busy host.
+   */
+  private TreeSet<HostCalls> promotableHosts = new TreeSet<>(NEXT_READY_CALL_FIRST);
+
+  /** Hands out places in the rotation of promotable hosts. */
+  private long nextTurn;
+
+  /**
+   * 准备异步调用，按照入队的顺序
+   * Ready async calls across all hosts in the order they were enqueued. */
+  private final Set<AsyncCall> readyAsyncCalls = new LinkedHashSet<>();
+
+  /** Breaks ties between ready calls of the same rank. */
+  private long nextCallSequence;
+
+  /** Enqueuing threads waiting for room in the queue. */
+  private int blockedEnqueuers;
+  private long rejectedCallCount;
+  private long discardedCallCount;
+
+  /** Per {@link Priority} statistics on how long started async calls waited in the queue. */
+  private final long[] startedCallCounts = new long[Priority.values().length];
+  private final long[] totalQueueWaitNanos = new long[Priority.values().length];
+  private final long[] maxQueueWaitNanos = new long[Priority.values().length];
+
+  /**
+   * Statistics on how long callbacks waited on the callback executor. These are atomic rather than
+   * guarded by this so that starting a callback doesn't contend with the dispatcher.
+   */
+  private final AtomicLong callbackCount = new AtomicLong();
+  private final AtomicLong totalCallbackWaitNanos = new AtomicLong();
+  private final AtomicLong maxCallbackWaitNanos = new AtomicLong();
 
   /**
    * 继续异步调用。包括取消没有结束的调用
    * Running asynchronous calls. Includes canceled calls that haven't finished yet. */
-  private final Deque<AsyncCall> runningAsyncCalls = new ArrayDeque<>();
+  private final Set<AsyncCall> runningAsyncCalls = new LinkedHashSet<>();
 
   /**
    * 运行同步调用。包括取消没有结束的调用
    * Running synchronous calls. Includes canceled calls that haven't finished yet. */
-  private final Deque<RealCall> runningSyncCalls = new ArrayDeque<>();
+  private final Set<RealCall> runningSyncCalls = new LinkedHashSet<>();
 
   public Dispatcher(ExecutorService executorService) {
     this.executorService = executorService;
@@ -114,6 +217,9 @@ public final class Dispatcher {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
     this.maxRequestsPerHost = maxRequestsPerHost;
+    for (HostCalls host : hostCalls.values()) {
+      updatePromotable(host);
+    }
     promoteCalls();
   }
 
@@ -121,6 +227,211 @@ public final class Dispatcher {
     return maxRequestsPerHost;
   }
 
+  /**
+   * 设置是否根据每个host的延迟和错误率自动调整每个host的最大请求数
+   * Sets whether each host's limit on concurrent requests adapts to how the host is coping. When
+   * enabled, a host's limit starts at {@linkplain #setMaxRequestsPerHost maxRequestsPerHost} and
+   * is then adjusted as its asynchronous calls complete:
+   *
+   * <ul>
+   *   <li>A failed call, a 5xx response, or a call that takes more than twice the host's baseline
+   *       latency shrinks the limit by 10%, to no lower than 1.
+   *   <li>Other calls grow the limit by roughly one per limit's worth of calls while the host is
+   *       using its full limit, to no higher than {@linkplain #setMaxRequests maxRequests}.
+   * </ul>
+   *
+   * <p>Limits are remembered while a host is idle, for up to {@value #MAX_REMEMBERED_HOSTS}
+   * hosts; beyond that the least recently called host forgets its limit and starts over. Use
+   * {@link #maxRequestsForHost} to observe each host's limit. Disabling adaptation forgets every
+   * limit and restores the static limit for every host.
+   */
+  public synchronized void setAdaptiveMaxRequestsPerHost(boolean adaptive) {
+    this.adaptiveMaxRequestsPerHost = adaptive;
+    hostLimits = adaptive ? new LinkedHashMap<String, HostLimit>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, HostLimit> eldest) {
+        return size() > MAX_REMEMBERED_HOSTS;
+      }
+    } : null;
+    for (HostCalls host : hostCalls.values()) {
+      host.limit = adaptive ? hostLimit(host.host) : null;
+      updatePromotable(host);
+    }
+    promoteCalls();
+  }
+
+  public synchronized boolean isAdaptiveMaxRequestsPerHost() {
+    return adaptiveMaxRequestsPerHost;
+  }
+
+  /**
+   * 返回{@code host}当前的最大并发请求数
+   * Returns the number of requests that may currently run concurrently for {@code host}. This is
+   * {@link #getMaxRequestsPerHost} unless {@linkplain #setAdaptiveMaxRequestsPerHost adaptive
+   * limits} are enabled and the host's limit has been adjusted.
+   */
+  public synchronized int maxRequestsForHost(String host) {
+    if (!adaptiveMaxRequestsPerHost) return maxRequestsPerHost;
+    HostLimit limit = hostLimits.get(host);
+    return limit != null ? limit(limit) : maxRequestsPerHost;
+  }
+
+  /**
+   * 设置队列中最多可以等待的请求数量
+   * Set the maximum number of asynchronous calls that may wait in the queue for a chance to run.
+   * When the queue is full, calls that can't run immediately are handled by the {@linkplain
+   * #setQueueFullPolicy queue full policy}. The default is unbounded.
+   *
+   * <p>If more than {@code maxQueuedRequests} calls are queued when this is invoked, those calls
+   * remain queued.
+   */
+  public synchronized void setMaxQueuedRequests(int maxQueuedRequests) {
+    if (maxQueuedRequests < 1) {
+      throw new IllegalArgumentException("max < 1: " + maxQueuedRequests);
+    }
+    this.maxQueuedRequests = maxQueuedRequests;
+    notifyAll(); // Blocked enqueuers may now have room.
+  }
+
+  public synchronized int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  /**
+   * 设置每个主机在队列中最多可以等待的请求数量
+   * Set the maximum number of asynchronous calls for each host that may wait in the queue. Like
+   * {@link #setMaxRequestsPerHost}, this limits calls by the URL's host name. The default is
+   * unbounded.
+   */
+  public synchronized void setMaxQueuedRequestsPerHost(int maxQueuedRequestsPerHost) {
+    if (maxQueuedRequestsPerHost < 1) {
+      throw new IllegalArgumentException("max < 1: " + maxQueuedRequestsPerHost);
+    }
+    this.maxQueuedRequestsPerHost = maxQueuedRequestsPerHost;
+    notifyAll(); // Blocked enqueuers may now have room.
+  }
+
+  public synchronized int getMaxQueuedRequestsPerHost() {
+    return maxQueuedRequestsPerHost;
+  }
+
+  /**
+   * 设置队列满了之后的处理策略
+   * Sets what happens to a call that must wait when the queue is full, either in total or for
+   * the call's host. The default is {@link QueueFullPolicy#REJECT}.
+   */
+  public synchronized void setQueueFullPolicy(QueueFullPolicy queueFullPolicy) {
+    if (queueFullPolicy == null) throw new NullPointerException("queueFullPolicy == null");
+    this.queueFullPolicy = queueFullPolicy;
+    notifyAll(); // Blocked enqueuers must apply the new policy.
+  }
+
+  public synchronized QueueFullPolicy getQueueFullPolicy() {
+    return queueFullPolicy;
+  }
+
+  /**
+   * 设置优先级老化的时间，每一级优先级相当于在队列中等待了这么长时间
+   * Sets how much time in the queue one step of {@linkplain Request#priority() priority} is worth.
+   * A queued call runs ahead of every lower priority call that was enqueued less than this long
+   * before it. In turn a low priority call is never overtaken by a higher priority call that was
+   * enqueued more than this long after it, so it cannot starve.
+   *
+   * <p>Calls that are already queued keep the order they were given when they were enqueued.
+   * Zero disables priorities so that all calls run in the order they were enqueued.
+   */
+  public synchronized void setPriorityAging(long duration, TimeUnit unit) {
+    if (duration < 0) throw new IllegalArgumentException("duration < 0: " + duration);
+    if (unit == null) throw new NullPointerException("unit == null");
+    this.priorityAgingNanos = unit.toNanos(duration);
+  }
+
+  public synchronized long getPriorityAgingMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(priorityAgingNanos);
+  }
+
+  /**
+   * 设置是否在host之间轮流调度
+   * Sets whether queued calls are promoted fairly across hosts. By default the dispatcher always
+   * promotes the highest ranked ready call of any host, so a burst of calls to one host holds
+   * back calls to other hosts that were enqueued after it.
+   *
+   * <p>With fair scheduling the dispatcher rotates through the hosts that have ready calls and
+   * spare {@linkplain #setMaxRequestsPerHost per-host capacity}, promoting one call from each in
+   * turn. Within a host calls are still promoted by {@linkplain Request#priority() priority} and
+   * age. A flood of calls to one origin then delays calls to other origins by at most one
+   * promotion per host.
+   */
+  public synchronized void setFairScheduling(boolean fairScheduling) {
+    if (fairScheduling == this.fairScheduling) return;
+    this.fairScheduling = fairScheduling;
+
+    TreeSet<HostCalls> promotableHosts = new TreeSet<>(
+        fairScheduling ? IN_TURN : NEXT_READY_CALL_FIRST);
+    promotableHosts.addAll(this.promotableHosts);
+    this.promotableHosts = promotableHosts;
+  }
+
+  public synchronized boolean isFairScheduling() {
+    return fairScheduling;
+  }
+
+  /**
+   * 限制匹配{@code hostPattern}的host每秒开始的异步请求数量
+   * Limits how many asynchronous calls per second are started for hosts matching {@code
+   * hostPattern}. Calls take a permit from a {@link TokenBucket} that holds up to {@code burst}
+   * permits and refills at {@code permitsPerSecond}. While it is empty, calls to matching hosts
+   * stay queued rather than going out only to be answered with {@code 429 Too Many Requests}.
+   *
+   * <p>The pattern is either a hostname like {@code api.example.com} or a wildcard like {@code
+   * *.example.com}, in which case the limit is shared by every matching host. A hostname takes
+   * precedence over wildcards that also match it. Setting a limit for a pattern that already has
+   * one replaces it with a full bucket.
+   *
+   * <p>Synchronous calls don't take permits; they are never queued by the dispatcher.
+   */
+  public synchronized void setRateLimit(String hostPattern, double permitsPerSecond, int burst) {
+    if (hostPattern == null) throw new NullPointerException("hostPattern == null");
+    rateLimits.put(hostPattern, new TokenBucket(hostPattern, permitsPerSecond, burst));
+    rateLimitsChanged();
+  }
+
+  /** Removes the rate limit for {@code hostPattern}, if any. */
+  public synchronized void removeRateLimit(String hostPattern) {
+    if (rateLimits.remove(hostPattern) != null) rateLimitsChanged();
+  }
+
+  /**
+   * 返回对{@code host}生效的令牌桶
+   * Returns the bucket that limits calls to {@code host}, or null if calls to it aren't rate
+   * limited. Use this to observe the bucket's {@linkplain TokenBucket#availablePermits permits}.
+   */
+  public synchronized TokenBucket rateLimit(String host) {
+    TokenBucket result = null;
+    for (TokenBucket bucket : rateLimits.values()) {
+      if (!bucket.matches(host)) continue;
+      if (bucket.pattern().equals(host)) return bucket;
+      if (result == null) result = bucket;
+    }
+    return result;
+  }
+
+  /** Returns a snapshot of the configured rate limits. */
+  public synchronized List<TokenBucket> rateLimits() {
+    return Collections.unmodifiableList(new ArrayList<>(rateLimits.values()));
+  }
+
+  private void rateLimitsChanged() {
+    for (HostCalls host : hostCalls.values()) {
+      host.rateLimit = rateLimit(host.host);
+      if (host.throttled) {
+        throttledHosts.remove(host);
+        host.throttled = false;
+      }
+      updatePromotable(host);
+    }
+    promoteCalls();
+  }
+
   /**
    * 设置一个回调，当一个dispatcher处于空闲的时候调用（当运行的call返回0的时候）
    * Set a callback to be invoked each time the dispatcher becomes idle (when the number of running
@@ -141,15 +452,126 @@ public final class Dispatcher {
     this.idleCallback = idleCallback;
   }
 
-  synchronized void enqueue(AsyncCall call) {
-    if (runningAsyncCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
-      runningAsyncCalls.add(call);
-      executorService().execute(call);
-    } else {
-      readyAsyncCalls.add(call);
+  /**
+   * 设置执行异步回调的executor，使得回调不会占用网络线程
+   * Sets the executor that runs {@link Callback} methods and completes {@link CallFuture}s for
+   * asynchronous calls. By default these run on the dispatcher thread that executed the call, so
+   * a slow callback holds one of the {@linkplain #setMaxRequests maxRequests} running slots until
+   * it returns.
+   *
+   * <p>With a callback executor, the dispatcher thread hands the response off as soon as its
+   * headers have been read and the call gives up its running slot straight away, so the next
+   * queued call can start while the callback runs. The handoff doesn't wait for the response body:
+   * callbacks still read it from the network, and it still holds a connection until it is closed.
+   * Use {@link #maxCallbackWaitNanos} to check that the executor keeps up.
+   *
+   * <p>The executor should run callbacks in parallel; callbacks it rejects run on the dispatcher
+   * thread instead. Note that with a callback executor the {@linkplain #setIdleCallback idle
+   * callback} may run before the callbacks of the last calls have returned. Pass null to run
+   * callbacks on dispatcher threads again.
+   */
+  public synchronized void setCallbackExecutor(Executor callbackExecutor) {
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  public synchronized Executor getCallbackExecutor() {
+    return callbackExecutor;
+  }
+
+  void enqueue(AsyncCall call) {
+    AsyncCall shed;
+    synchronized (this) {
+      shed = enqueueOrShed(call);
+    }
+
+    if (shed == call) {
+      call.reject(new CallRejectedException("Dispatcher queue is full"));
+    } else if (shed != null) {
+      shed.reject(new CallRejectedException("Discarded from a full dispatcher queue"));
     }
   }
 
+  /**
+   * Runs or queues {@code call}. If the queue is full this applies the queue full policy and
+   * returns the call that was shed: either {@code call} or the one discarded in its place.
+   */
+  private AsyncCall enqueueOrShed(AsyncCall call) {
+    assert (Thread.holdsLock(this));
+    AsyncCall shed = null;
+    HostCalls host;
+    while (true) {
+      // Look the host up on each pass: waiting may have dropped its record.
+      host = hostCalls(call.host());
+      call.enqueuedAtNanos = System.nanoTime();
+      if (runningAsyncCalls.size() < maxRequests && host.running < limit(host)
+          && !host.throttled) {
+        if (host.rateLimit == null || host.rateLimit.tryAcquire(call.enqueuedAtNanos)) {
+          start(host, call, call.enqueuedAtNanos);
+          return null;
+        }
+        unmarkPromotable(host);
+        throttle(host);
+      }
+
+      boolean hostQueueFull = host.ready.size() >= maxQueuedRequestsPerHost;
+      if (!hostQueueFull && readyAsyncCalls.size() < maxQueuedRequests) break;
+
+      if (queueFullPolicy == QueueFullPolicy.DISCARD_OLDEST) {
+        // Swap one call for another so that the queue doesn't grow, even if it is still above a
+        // limit that was just lowered.
+        shed = hostQueueFull ? oldest(host.ready) : readyAsyncCalls.iterator().next();
+        removeReady(shed);
+        discardedCallCount++;
+        host = hostCalls(call.host());
+        break;
+      }
+
+      if (queueFullPolicy == QueueFullPolicy.BLOCK) {
+        blockedEnqueuers++;
+        try {
+          wait();
+          continue; // Running calls may have made room. Check again.
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          blockedEnqueuers--;
+        }
+      }
+
+      removeIfIdle(host);
+      rejectedCallCount++;
+      return call;
+    }
+
+    call.rank = call.enqueuedAtNanos - call.priority().ordinal() * priorityAgingNanos;
+    call.sequence = nextCallSequence++;
+    // The new call may run before the host's next call. In a fair rotation the host keeps its
+    // turn as that doesn't depend on which of its calls is next.
+    if (!fairScheduling) unmarkPromotable(host);
+    host.ready.add(call);
+    readyAsyncCalls.add(call);
+    updatePromotable(host);
+    return shed;
+  }
+
+  /** Returns the call that was enqueued first among {@code calls}. */
+  private static AsyncCall oldest(Iterable<AsyncCall> calls) {
+    AsyncCall result = null;
+    for (AsyncCall call : calls) {
+      if (result == null || call.sequence < result.sequence) result = call;
+    }
+    return result;
+  }
+
+  /** Removes {@code call} from the queue without running it. */
+  private void removeReady(AsyncCall call) {
+    HostCalls host = hostCalls.get(call.host());
+    unmarkPromotable(host);
+    host.ready.remove(call);
+    readyAsyncCalls.remove(call);
+    if (!removeIfIdle(host)) updatePromotable(host);
+  }
+
   /**
    * 取消当前所有的enqueued 或者 executing的Call。
    * Cancel all calls currently enqueued or executing. Includes calls executed both {@linkplain
@@ -170,33 +592,143 @@ public final class Dispatcher {
   }
 
   private void promoteCalls() {
-    if (runningAsyncCalls.size() >= maxRequests) return; // Already running max capacity.
-    if (readyAsyncCalls.isEmpty()) return; // No ready calls to promote.
+    long now = 0L;
+    while (runningAsyncCalls.size() < maxRequests) {
+      HostCalls host = promotableHosts.pollFirst();
+      if (host == null) return; // No ready calls to promote.
+      if (now == 0L) now = System.nanoTime();
+
+      // Take the host out of the promotable set before its next call changes.
+      host.promotable = false;
+      if (host.rateLimit != null && !host.rateLimit.tryAcquire(now)) {
+        throttle(host);
+        continue;
+      }
+      AsyncCall call = host.ready.poll();
+      readyAsyncCalls.remove(call);
+      start(host, call, now);
+      updatePromotable(host);
+      if (blockedEnqueuers > 0) notifyAll(); // There's room in the queue.
+    }
+  }
 
-    for (Iterator<AsyncCall> i = readyAsyncCalls.iterator(); i.hasNext(); ) {
-      AsyncCall call = i.next();
+  /**
+   * Holds {@code host}'s ready calls until its rate limit has a permit. The caller must already have
+   * taken the host out of {@link #promotableHosts}.
+   */
+  private void throttle(HostCalls host) {
+    host.throttled = true;
+    throttledHosts.add(host);
+    if (!throttleRunning) {
+      throttleRunning = true;
+      throttleExecutor.execute(throttleRunnable);
+    } else {
+      notifyAll(); // This host's bucket may refill before the others.
+    }
+  }
 
-      if (runningCallsForHost(call) < maxRequestsPerHost) {
-        i.remove();
-        runningAsyncCalls.add(call);
-        executorService().execute(call);
-      }
+  /**
+   * Makes hosts whose rate limit has a permit promotable again and promotes their calls. Returns
+   * the duration in nanos until the next throttled host may have a permit, or -1 if no hosts are
+   * throttled.
+   */
+  private long releaseThrottledHosts(long now) {
+    assert (Thread.holdsLock(this));
+    for (Iterator<HostCalls> i = throttledHosts.iterator(); i.hasNext(); ) {
+      HostCalls host = i.next();
+      if (host.rateLimit.nanosUntilPermit(now) > 0L) continue;
+      i.remove();
+      host.throttled = false;
+      updatePromotable(host);
+    }
+    promoteCalls();
 
-      if (runningAsyncCalls.size() >= maxRequests) return; // Reached max capacity.
+    if (throttledHosts.isEmpty()) return -1L;
+    long waitNanos = Long.MAX_VALUE;
+    for (HostCalls host : throttledHosts) {
+      waitNanos = Math.min(waitNanos, Math.max(1L, host.rateLimit.nanosUntilPermit(now)));
     }
+    return waitNanos;
+  }
+
+  private void start(HostCalls host, AsyncCall call, long now) {
+    int priority = call.priority().ordinal();
+    long waitNanos = now - call.enqueuedAtNanos;
+    startedCallCounts[priority]++;
+    totalQueueWaitNanos[priority] += waitNanos;
+    if (waitNanos > maxQueueWaitNanos[priority]) maxQueueWaitNanos[priority] = waitNanos;
+
+    host.running++;
+    runningAsyncCalls.add(call);
+    executorService().execute(call);
   }
 
   /**
-   * 返回和{@code call}共享同一个host的call数量
-   * Returns the number of running calls that share a host with {@code call}. */
-  private int runningCallsForHost(AsyncCall call) {
-    int result = 0;
-    for (AsyncCall c : runningAsyncCalls) {
-      if (c.host().equals(call.host())) result++;
+   * 返回{@code host}的调用记录，如果不存在就创建一个
+   * Returns the calls for {@code host}, creating an empty record if it has none. */
+  private HostCalls hostCalls(String host) {
+    HostCalls result = hostCalls.get(host);
+    if (result == null) {
+      result = new HostCalls(host);
+      result.limit = adaptiveMaxRequestsPerHost ? hostLimit(host) : null;
+      result.rateLimit = rateLimits.isEmpty() ? null : rateLimit(host);
+      hostCalls.put(host, result);
     }
     return result;
   }
 
+  /** Returns the adaptive limit for {@code host}, creating one at the static limit if it has none. */
+  private HostLimit hostLimit(String host) {
+    HostLimit result = hostLimits.get(host);
+    if (result == null) {
+      result = new HostLimit(maxRequestsPerHost);
+      hostLimits.put(host, result);
+    }
+    return result;
+  }
+
+  /** Drops the record of {@code host} if it has no running or ready calls. */
+  private boolean removeIfIdle(HostCalls host) {
+    if (host.running != 0 || !host.ready.isEmpty()) return false;
+    hostCalls.remove(host.host);
+    if (host.throttled) throttledHosts.remove(host);
+    return true;
+  }
+
+  /**
+   * Adds {@code host} to or removes it from {@link #promotableHosts} to reflect whether it has a
+   * ready call, spare capacity and no rate limit holding it back. Callers must not change the host's next ready call while it is
+   * promotable; the set is ordered by that call.
+   */
+  private void updatePromotable(HostCalls host) {
+    boolean promotable = !host.ready.isEmpty() && host.running < limit(host) && !host.throttled;
+    if (promotable == host.promotable) return;
+    if (promotable) {
+      host.turn = nextTurn++; // Join the back of the rotation.
+      promotableHosts.add(host);
+    } else {
+      promotableHosts.remove(host);
+    }
+    host.promotable = promotable;
+  }
+
+  /** Returns the number of calls to {@code host} that may run concurrently. */
+  private int limit(HostCalls host) {
+    if (!adaptiveMaxRequestsPerHost) return maxRequestsPerHost;
+    return limit(host.limit);
+  }
+
+  private int limit(HostLimit limit) {
+    return Math.max(1, Math.min(maxRequests, (int) limit.limit));
+  }
+
+  /** Removes {@code host} from {@link #promotableHosts} so that its ready calls may change. */
+  private void unmarkPromotable(HostCalls host) {
+    if (!host.promotable) return;
+    promotableHosts.remove(host);
+    host.promotable = false;
+  }
+
   /**
    * 使用{@code Call#execute}来标记其正在运行
    * Used by {@code Call#execute} to signal it is in-flight. */
@@ -208,22 +740,34 @@ public final class Dispatcher {
    * 使用{@code AsyncCall#run}完成标记
    * Used by {@code AsyncCall#run} to signal completion. */
   void finished(AsyncCall call) {
-    finished(runningAsyncCalls, call, true);
+    finished(runningAsyncCalls, call, call);
   }
 
   /**
    * 使用{@code Call#execute}完成标记
    * Used by {@code Call#execute} to signal completion. */
   void finished(RealCall call) {
-    finished(runningSyncCalls, call, false);
+    finished(runningSyncCalls, call, null);
   }
 
-  private <T> void finished(Deque<T> calls, T call, boolean promoteCalls) {
+  /**
+   * Removes {@code call} from {@code calls}. If {@code asyncCall} is non-null its host gives up a
+   * running slot and ready calls are promoted.
+   */
+  private <T> void finished(Set<T> calls, T call, AsyncCall asyncCall) {
     int runningCallsCount;
     Runnable idleCallback;
     synchronized (this) {
       if (!calls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
-      if (promoteCalls) promoteCalls();
+      if (asyncCall != null) {
+        HostCalls host = hostCalls.get(asyncCall.host());
+        if (adaptiveMaxRequestsPerHost && asyncCall.exchangeNanos != -1L) {
+          host.limit.adapt(asyncCall.exchangeNanos, asyncCall.exchangeFailed, host.running);
+        }
+        host.running--;
+        if (!removeIfIdle(host)) updatePromotable(host);
+        promoteCalls();
+      }
       runningCallsCount = runningCallsCount();
       idleCallback = this.idleCallback;
     }
@@ -237,7 +781,10 @@ public final class Dispatcher {
    * 返回当前正在等待执行的calls的快照
    * Returns a snapshot of the calls currently awaiting execution. */
   public synchronized List<Call> queuedCalls() {
-    List<Call> result = new ArrayList<>();
+    List<AsyncCall> readyAsyncCalls = new ArrayList<>(this.readyAsyncCalls);
+    Collections.sort(readyAsyncCalls, NEXT_TO_RUN);
+
+    List<Call> result = new ArrayList<>(readyAsyncCalls.size());
     for (AsyncCall asyncCall : readyAsyncCalls) {
       result.add(asyncCall.get());
     }
@@ -260,7 +807,186 @@ public final class Dispatcher {
     return readyAsyncCalls.size();
   }
 
+  /**
+   * 返回因为队列已满而被拒绝的调用数量
+   * Returns the number of calls that were rejected because the queue was full. */
+  public synchronized long rejectedCallCount() {
+    return rejectedCallCount;
+  }
+
+  /**
+   * 返回因为给新调用腾出空间而被丢弃的调用数量
+   * Returns the number of queued calls that were discarded to make room for newer calls. */
+  public synchronized long discardedCallCount() {
+    return discardedCallCount;
+  }
+
   public synchronized int runningCallsCount() {
     return runningAsyncCalls.size() + runningSyncCalls.size();
   }
+
+  /**
+   * 返回某个优先级已经开始运行的异步调用数量
+   * Returns the number of asynchronous calls with {@code priority} that have started running,
+   * including those that started immediately without waiting in the queue.
+   */
+  public synchronized long startedCallCount(Priority priority) {
+    return startedCallCounts[priority.ordinal()];
+  }
+
+  /**
+   * Returns the total time that started asynchronous calls with {@code priority} spent waiting in
+   * the queue. Divide by {@link #startedCallCount} for the mean wait.
+   */
+  public synchronized long totalQueueWaitNanos(Priority priority) {
+    return totalQueueWaitNanos[priority.ordinal()];
+  }
+
+  /** Returns the longest time any asynchronous call with {@code priority} waited in the queue. */
+  public synchronized long maxQueueWaitNanos(Priority priority) {
+    return maxQueueWaitNanos[priority.ordinal()];
+  }
+
+  /** Records that a callback started after waiting {@code waitNanos} on the callback executor. */
+  void callbackStarted(long waitNanos) {
+    callbackCount.incrementAndGet();
+    totalCallbackWaitNanos.addAndGet(waitNanos);
+    while (true) {
+      long max = maxCallbackWaitNanos.get();
+      if (waitNanos <= max || maxCallbackWaitNanos.compareAndSet(max, waitNanos)) return;
+    }
+  }
+
+  /**
+   * 返回在回调executor上运行过的回调数量
+   * Returns the number of callbacks that have started on the {@linkplain #setCallbackExecutor
+   * callback executor}.
+   */
+  public long callbackCount() {
+    return callbackCount.get();
+  }
+
+  /**
+   * Returns the total time callbacks waited on the callback executor between being handed off and
+   * starting. Divide by {@link #callbackCount} for the mean wait. Callbacks that start between
+   * the two reads may skew it slightly.
+   */
+  public long totalCallbackWaitNanos() {
+    return totalCallbackWaitNanos.get();
+  }
+
+  /** Returns the longest time any callback waited on the callback executor. */
+  public long maxCallbackWaitNanos() {
+    return maxCallbackWaitNanos.get();
+  }
+
+  /** Orders calls by rank, falling back to the order in which they were enqueued. */
+  private static final Comparator<AsyncCall> NEXT_TO_RUN = new Comparator<AsyncCall>() {
+    @Override public int compare(AsyncCall a, AsyncCall b) {
+      if (a.rank != b.rank) return a.rank < b.rank ? -1 : 1;
+      return a.sequence < b.sequence ? -1 : (a.sequence > b.sequence ? 1 : 0);
+    }
+  };
+
+  private static final Comparator<HostCalls> NEXT_READY_CALL_FIRST = new Comparator<HostCalls>() {
+    @Override public int compare(HostCalls a, HostCalls b) {
+      return NEXT_TO_RUN.compare(a.ready.peek(), b.ready.peek());
+    }
+  };
+
+  private static final Comparator<HostCalls> IN_TURN = new Comparator<HostCalls>() {
+    @Override public int compare(HostCalls a, HostCalls b) {
+      return a.turn < b.turn ? -1 : (a.turn > b.turn ? 1 : 0);
+    }
+  };
+
+  /**
+   * 当队列已满时如何处理新的调用
+   * What the dispatcher does with a call that must wait when its queue is full. Calls that are
+   * shed fail with a {@link CallRejectedException}, delivered on the {@linkplain
+   * #setCallbackExecutor callback executor} if there is one and otherwise on the thread that
+   * enqueued the new call.
+   */
+  public enum QueueFullPolicy {
+    /** Reject the new call. */
+    REJECT,
+
+    /**
+     * Discard the call that has waited longest to make room for the new call. If the call's host
+     * has too many queued calls the oldest call to that host is discarded.
+     */
+    DISCARD_OLDEST,
+
+    /**
+     * Block the thread that is enqueuing the call until there is room. If that thread is
+     * interrupted the new call is rejected. Don't enqueue calls from callbacks with this policy:
+     * if every dispatcher thread is blocked no call can finish to make room.
+     */
+    BLOCK
+  }
+
+  /**
+   * 一个host的异步调用：正在运行的数量和准备运行的队列
+   * The async calls to a single host: how many are running and which are waiting to run. */
+  static final class HostCalls {
+    final String host;
+    final PriorityQueue<AsyncCall> ready = new PriorityQueue<>(11, NEXT_TO_RUN);
+    int running;
+
+    /** True if this host is in {@link Dispatcher#promotableHosts}. */
+    boolean promotable;
+
+    /** This host's place in the rotation when scheduling is fair. */
+    long turn;
+
+    /** This host's adaptive limit, or null unless limits are adaptive. */
+    HostLimit limit;
+
+    /** The bucket that limits how often this host's calls start, or null if it is unlimited. */
+    TokenBucket rateLimit;
+
+    /** True if this host is in {@link Dispatcher#throttledHosts}, waiting for a permit. */
+    boolean throttled;
+
+    HostCalls(String host) {
+      this.host = host;
+    }
+  }
+
+  /**
+   * 一个host的自适应并发限制，在host空闲时保留
+   * A single host's adaptive concurrency limit. This is kept while the host is idle. */
+  static final class HostLimit {
+    /** This host's concurrency limit. Fractional to grow gradually. */
+    double limit;
+
+    /** The latency this host achieves when it isn't overloaded, or 0 before the first sample. */
+    long baselineNanos;
+
+    HostLimit(int maxRequestsPerHost) {
+      this.limit = maxRequestsPerHost;
+    }
+
+    /**
+     * Adjusts this host's limit for a call that took {@code exchangeNanos}. This is additive
+     * increase, multiplicative decrease: failures and latency well above the baseline are taken
+     * as signs of overload and cut the limit, while healthy calls grow it by {@code 1 / limit} so
+     * that it rises by about one per round of calls.
+     */
+    void adapt(long exchangeNanos, boolean failed, int running) {
+      if (baselineNanos == 0L || exchangeNanos < baselineNanos) {
+        baselineNanos = exchangeNanos;
+      } else {
+        // Drift up slowly so the baseline follows a host that is permanently slower.
+        baselineNanos += (exchangeNanos - baselineNanos) / 64;
+      }
+
+      if (failed || exchangeNanos > 2 * baselineNanos) {
+        limit = Math.max(1.0, limit * 0.9);
+      } else if (running >= (int) limit) {
+        // Only grow a limit that is actually constraining this host.
+        limit += 1.0 / limit;
+      }
+    }
+  }
 }
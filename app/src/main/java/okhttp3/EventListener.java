@@ -1,13 +1,60 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
 package okhttp3;
 
-/**
- * Created by Administrator on 2017/5/9 0009.
- */
 import java.net.InetAddress;
 import java.util.List;
 
-// TODO(jwilson): make this public after the 3.7 release.
-abstract class EventListener {
+/**
+ * 监听一个调用的各个阶段，可以用来测量每个阶段的耗时
+ * Listener for metrics events. Extend this class to monitor the quantity, size, and duration of
+ * your application's HTTP calls.
+ *
+ * <p>All start/connect/acquire events will eventually receive a matching end/release event,
+ * either successful (null throwable) or failed (non-null throwable). The first common parameters
+ * of each event pair are used to link the event in case of concurrent or repeated events e.g.
+ * {@code dnsStart(call, domainName)} -&gt; {@code dnsEnd(call, domainName, inetAddressList,
+ * throwable)}.
+ *
+ * <p>Events are typically nested with this structure:
+ *
+ * <ul>
+ *   <li>fetch: the call, from the moment it starts running until its response headers have been
+ *       received or it fails. A call may do several of the following for retries and follow-ups.
+ *   <ul>
+ *     <li>dns: resolving the host of a new connection.
+ *     <li>connect: connecting a new connection, including TLS, to one address.
+ *     <ul>
+ *       <li>secureConnect: the TLS handshake of that connection.
+ *     </ul>
+ *     <li>connectionAcquired: a new or pooled connection was chosen for the next exchange.
+ *     <li>requestHeaders, requestBody, responseHeaders: one exchange on a new or pooled
+ *         connection.
+ *   </ul>
+ *   <li>responseBody: reading the response body, which ends when the body is exhausted or closed
+ *       and may be after the fetch has ended.
+ * </ul>
+ *
+ * <p>Events are called on the thread doing the work and must not block. Listeners must be thread
+ * safe, even one created for a single call: a {@linkplain OkHttpClient.Builder#hedgeDelay hedged}
+ * call runs its second attempt on a dispatcher thread while the first is still running, and both
+ * attempts report dns, connect and exchange events to the call's listener concurrently. The
+ * default listener {@link #NONE} ignores every event.
+ */
+public abstract class EventListener {
     public static final EventListener NONE = new EventListener() {
     };
 
@@ -19,59 +66,101 @@ abstract class EventListener {
         };
     }
 
+    /** Invoked as a call starts running, whether it was executed or enqueued. */
     public void fetchStart(Call call) {
     }
 
+    /** Invoked before a DNS lookup of {@code domainName}. */
     public void dnsStart(Call call, String domainName) {
     }
 
+    /** Invoked after a DNS lookup, with the addresses found or the failure. */
     public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList,
                        Throwable throwable) {
     }
 
+    /** Invoked just prior to initiating a socket connection to {@code address}. */
     public void connectStart(Call call, InetAddress address, int port) {
     }
 
+    /** Invoked just prior to initiating a TLS connection. */
     public void secureConnectStart(Call call) {
     }
 
+    /** Invoked after a TLS connection attempt, with its handshake or the failure. */
     public void secureConnectEnd(Call call, Handshake handshake,
                                  Throwable throwable) {
     }
 
+    /**
+     * Invoked after a connection attempt, with the negotiated protocol such as {@code http/1.1} or
+     * the failure. A failed attempt may be followed by another to the same address with a different
+     * TLS configuration.
+     */
     public void connectEnd(Call call,  InetAddress address, int port, String protocol,
                            Throwable throwable) {
     }
 
+    /**
+     * Invoked after a connection has been chosen for an exchange, whether it is new or was taken
+     * from the pool. Pooled connections don't receive connect events, so use this to learn the
+     * {@linkplain Connection#protocol() protocol} and route of every exchange.
+     */
+    public void connectionAcquired(Call call, Connection connection) {
+    }
+
+    /** Invoked just prior to sending request headers. */
     public void requestHeadersStart(Call call) {
     }
 
+    /** Invoked after sending request headers, or after failing to. */
     public void requestHeadersEnd(Call call, Throwable throwable) {
     }
 
+    /** Invoked just prior to sending a request body. Only invoked for requests with a body. */
     public void requestBodyStart(Call call) {
     }
 
+    /** Invoked after sending a request body, or after failing to. */
     public void requestBodyEnd(Call call, Throwable throwable) {
     }
 
+    /** Invoked just prior to waiting for response headers. */
     public void responseHeadersStart(Call call) {
     }
 
+    /** Invoked after receiving response headers, or after failing to. */
     public void responseHeadersEnd(Call call, Throwable throwable) {
     }
 
+    /** Invoked when the response body is ready to be read. */
     public void responseBodyStart(Call call) {
     }
 
+    /**
+     * Invoked when the response body is exhausted or closed. The throwable is null only if the
+     * body was read to its end; it is non-null if reading failed, the body was truncated, or it was
+     * closed before it was exhausted.
+     */
     public void responseBodyEnd(Call call, Throwable throwable) {
     }
 
+    /** Invoked when the call has its response headers, or has failed. */
     public void fetchEnd(Call call, Throwable throwable) {
     }
 
     public interface Factory {
+        /**
+         * Creates an instance of the {@link EventListener} for a particular {@link Call}. The
+         * returned {@link EventListener} instance will be used during the lifecycle of the
+         * {@code call}.
+         *
+         * <p>This method is invoked after the {@code call} is created. See {@link
+         * OkHttpClient#newCall(Request)}.
+         *
+         * <p><strong>It is an error for implementations to issue any mutating operations on the
+         * {@code call} instance from this method.</strong>
+         */
         EventListener create(Call call);
     }
 }
-
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 按host和协议统计每个阶段耗时的直方图
+ * Records how long each phase of a call takes into histograms kept per host and {@link
+ * Protocol}. Install it as the client's {@linkplain OkHttpClient.Builder#eventListenerFactory
+ * event listener factory}, then read percentiles with {@link #snapshot}:
+ *
+ * <pre>   {@code
+ *
+ *   LatencyMetrics metrics = new LatencyMetrics();
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .eventListenerFactory(metrics)
+ *       .build();
+ *   ...
+ *   LatencyMetrics.Snapshot ttfb = metrics.snapshot(
+ *       "api.example.com", Protocol.HTTP_2, LatencyMetrics.Phase.TIME_TO_FIRST_BYTE);
+ *   long p99Nanos = ttfb.percentileNanos(99.0);
+ * }</pre>
+ *
+ * <p>Histograms are log-linear like HdrHistogram's: each power of two is split into 16 buckets,
+ * so a bucket is at most 1/16th of its lowest value wide and a recorded duration is accurate to
+ * within about 6.25%. Durations are kept in microseconds up to about 71 minutes; longer durations
+ * are counted in the last bucket. Each histogram is a fixed array of counters updated with atomic
+ * increments, so recording takes no shared locks and allocates nothing. The per-call listener
+ * that tracks when each phase started is the only allocation, one small object per call.
+ *
+ * <p>Calls are recorded under the host of their request, even when their connection was opened
+ * for another host and coalesced.
+ *
+ * <p>Memory is fixed per host and protocol. To bound it, hosts beyond {@code maxHosts} are recorded
+ * together under the host {@link #OTHER_HOSTS}.
+ */
+public final class LatencyMetrics implements EventListener.Factory {
+  /** The host that calls to hosts beyond the limit are recorded under. */
+  public static final String OTHER_HOSTS = "*";
+
+  /** The phases of a call that are timed. */
+  public enum Phase {
+    /** Resolving the host's addresses, for calls that made a new connection. */
+    DNS,
+    /** Connecting a new connection, including TLS. */
+    CONNECT,
+    /** The TLS handshake of a new connection. */
+    TLS,
+    /** From starting to send the request until the response headers have been read. */
+    TIME_TO_FIRST_BYTE,
+    /** From the response body being ready to read until it is exhausted or closed. */
+    BODY
+  }
+
+  private static final Phase[] PHASES = Phase.values();
+  private static final Protocol[] PROTOCOLS = Protocol.values();
+
+  private final int maxHosts;
+  private final ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+  private final AtomicInteger hostCount = new AtomicInteger();
+
+  public LatencyMetrics() {
+    this(256);
+  }
+
+  public LatencyMetrics(int maxHosts) {
+    if (maxHosts < 1) throw new IllegalArgumentException("maxHosts < 1: " + maxHosts);
+    this.maxHosts = maxHosts;
+  }
+
+  @Override public EventListener create(Call call) {
+    return new CallMetrics();
+  }
+
+  /**
+   * Returns the recorded durations of {@code phase} for {@code host} over {@code protocol}, or
+   * null if none have been recorded.
+   */
+  public Snapshot snapshot(String host, Protocol protocol, Phase phase) {
+    HostMetrics hostMetrics = hosts.get(host);
+    if (hostMetrics == null) return null;
+    Histogram[] histograms = hostMetrics.byProtocol.get(protocol.ordinal());
+    if (histograms == null) return null;
+    Snapshot result = histograms[phase.ordinal()].snapshot(host, protocol, phase);
+    return result.count() != 0 ? result : null;
+  }
+
+  /** Returns snapshots of every histogram that has recorded a duration. */
+  public List<Snapshot> snapshots() {
+    List<Snapshot> result = new ArrayList<>();
+    for (Map.Entry<String, HostMetrics> entry : hosts.entrySet()) {
+      for (Protocol protocol : PROTOCOLS) {
+        for (Phase phase : PHASES) {
+          Snapshot snapshot = snapshot(entry.getKey(), protocol, phase);
+          if (snapshot != null) result.add(snapshot);
+        }
+      }
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  void record(String host, Protocol protocol, Phase phase, long nanos) {
+    if (nanos < 0L) return;
+    histograms(host, protocol)[phase.ordinal()].record(nanos);
+  }
+
+  /** Returns the histograms for {@code host} and {@code protocol}, creating them the first time. */
+  private Histogram[] histograms(String host, Protocol protocol) {
+    HostMetrics hostMetrics = hosts.get(host);
+    if (hostMetrics == null) {
+      if (hostCount.get() >= maxHosts || hostCount.incrementAndGet() > maxHosts) {
+        host = OTHER_HOSTS;
+      }
+      hostMetrics = hosts.get(host);
+      if (hostMetrics == null) {
+        HostMetrics created = new HostMetrics();
+        hostMetrics = hosts.putIfAbsent(host, created);
+        if (hostMetrics == null) hostMetrics = created;
+      }
+    }
+
+    Histogram[] result = hostMetrics.byProtocol.get(protocol.ordinal());
+    if (result == null) {
+      Histogram[] created = new Histogram[PHASES.length];
+      for (int i = 0; i < created.length; i++) {
+        created[i] = new Histogram();
+      }
+      if (!hostMetrics.byProtocol.compareAndSet(protocol.ordinal(), null, created)) {
+        result = hostMetrics.byProtocol.get(protocol.ordinal());
+      } else {
+        result = created;
+      }
+    }
+    return result;
+  }
+
+  private static final class HostMetrics {
+    /** Histograms for each phase, indexed by protocol ordinal. Created on first use. */
+    final AtomicReferenceArray<Histogram[]> byProtocol =
+        new AtomicReferenceArray<>(PROTOCOLS.length);
+  }
+
+  /**
+   * Tracks when each phase of one call started. Connect phases are recorded once the connection
+   * is acquired, when its protocol is known. Hedged attempts of a call share its listener and
+   * report events from different threads, so every event is handled while holding this; their
+   * phases may overlap and the latest start of a phase wins.
+   */
+  private final class CallMetrics extends EventListener {
+    private long dnsStartNanos;
+    private long dnsNanos = -1L;
+    private long connectStartNanos;
+    private long connectNanos = -1L;
+    private long secureConnectStartNanos;
+    private long secureConnectNanos = -1L;
+    private long requestHeadersStartNanos;
+    private long responseBodyStartNanos;
+    private String host;
+    private Protocol protocol;
+
+    @Override public synchronized void dnsStart(Call call, String domainName) {
+      dnsStartNanos = System.nanoTime();
+    }
+
+    @Override public synchronized void dnsEnd(Call call, String domainName,
+        List<InetAddress> inetAddressList, Throwable throwable) {
+      if (throwable == null) dnsNanos = System.nanoTime() - dnsStartNanos;
+    }
+
+    @Override public synchronized void connectStart(Call call, InetAddress address, int port) {
+      connectStartNanos = System.nanoTime();
+    }
+
+    @Override public synchronized void secureConnectStart(Call call) {
+      secureConnectStartNanos = System.nanoTime();
+    }
+
+    @Override public synchronized void secureConnectEnd(Call call, Handshake handshake,
+        Throwable throwable) {
+      if (throwable == null) secureConnectNanos = System.nanoTime() - secureConnectStartNanos;
+    }
+
+    @Override public synchronized void connectEnd(Call call, InetAddress address, int port,
+        String protocol, Throwable throwable) {
+      if (throwable == null) connectNanos = System.nanoTime() - connectStartNanos;
+    }
+
+    @Override public synchronized void connectionAcquired(Call call, Connection connection) {
+      host = call.request().url().host();
+      protocol = connection.protocol();
+      if (dnsNanos != -1L) record(host, protocol, Phase.DNS, dnsNanos);
+      if (connectNanos != -1L) record(host, protocol, Phase.CONNECT, connectNanos);
+      if (secureConnectNanos != -1L) record(host, protocol, Phase.TLS, secureConnectNanos);
+      dnsNanos = -1L;
+      connectNanos = -1L;
+      secureConnectNanos = -1L;
+    }
+
+    @Override public synchronized void requestHeadersStart(Call call) {
+      requestHeadersStartNanos = System.nanoTime();
+    }
+
+    @Override public synchronized void responseHeadersEnd(Call call, Throwable throwable) {
+      if (throwable == null && host != null) {
+        record(host, protocol, Phase.TIME_TO_FIRST_BYTE,
+            System.nanoTime() - requestHeadersStartNanos);
+      }
+    }
+
+    @Override public synchronized void responseBodyStart(Call call) {
+      responseBodyStartNanos = System.nanoTime();
+    }
+
+    @Override public synchronized void responseBodyEnd(Call call, Throwable throwable) {
+      if (throwable == null && host != null && responseBodyStartNanos != 0L) {
+        record(host, protocol, Phase.BODY, System.nanoTime() - responseBodyStartNanos);
+      }
+    }
+  }
+
+  /**
+   * A log-linear histogram of durations in microseconds. Values below 32 each have a bucket; above
+   * that each power of two is split into 16 buckets of equal width.
+   */
+  static final class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // 32
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2; // 16
+    private static final long MAX_MICROS = (1L << 32) - 1L;
+    static final int BUCKET_COUNT = index(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long nanos) {
+      long micros = Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_MICROS);
+      counts.incrementAndGet(index(micros));
+      totalMicros.addAndGet(micros);
+      while (true) {
+        long max = maxMicros.get();
+        if (micros <= max || maxMicros.compareAndSet(max, micros)) return;
+      }
+    }
+
+    static int index(long micros) {
+      if (micros < SUB_BUCKET_COUNT) return (int) micros;
+      int exponent = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BUCKET_BITS - 1);
+      return SUB_BUCKET_COUNT + (exponent - 1) * SUB_BUCKET_HALF_COUNT
+          + (int) ((micros >>> exponent) - SUB_BUCKET_HALF_COUNT);
+    }
+
+    /** Returns the largest value that is counted in the bucket at {@code index}. */
+    static long highestValue(int index) {
+      if (index < SUB_BUCKET_COUNT) return index;
+      int offset = index - SUB_BUCKET_COUNT;
+      int exponent = offset / SUB_BUCKET_HALF_COUNT + 1;
+      long subBucket = offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+      return ((subBucket + 1) << exponent) - 1;
+    }
+
+    Snapshot snapshot(String host, Protocol protocol, Phase phase) {
+      long[] copy = new long[BUCKET_COUNT];
+      long count = 0L;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        copy[i] = counts.get(i);
+        count += copy[i];
+      }
+      return new Snapshot(host, protocol, phase, copy, count, totalMicros.get(), maxMicros.get());
+    }
+  }
+
+  /** The durations recorded for one phase of calls to one host over one protocol. */
+  public static final class Snapshot {
+    private final String host;
+    private final Protocol protocol;
+    private final Phase phase;
+    private final long[] counts;
+    private final long count;
+    private final long totalMicros;
+    private final long maxMicros;
+
+    Snapshot(String host, Protocol protocol, Phase phase, long[] counts, long count,
+        long totalMicros, long maxMicros) {
+      this.host = host;
+      this.protocol = protocol;
+      this.phase = phase;
+      this.counts = counts;
+      this.count = count;
+      this.totalMicros = totalMicros;
+      this.maxMicros = maxMicros;
+    }
+
+    public String host() {
+      return host;
+    }
+
+    public Protocol protocol() {
+      return protocol;
+    }
+
+    public Phase phase() {
+      return phase;
+    }
+
+    /** Returns the number of recorded durations. */
+    public long count() {
+      return count;
+    }
+
+    public long meanNanos() {
+      return count != 0L ? TimeUnit.MICROSECONDS.toNanos(totalMicros / count) : 0L;
+    }
+
+    public long maxNanos() {
+      return TimeUnit.MICROSECONDS.toNanos(maxMicros);
+    }
+
+    /**
+     * Returns the duration that {@code percentile} percent of recorded durations are less than or
+     * equal to, such as 99.0 for the 99th percentile. Returns 0 if nothing was recorded.
+     */
+    public long percentileNanos(double percentile) {
+      if (percentile < 0.0 || percentile > 100.0) {
+        throw new IllegalArgumentException("percentile out of range: " + percentile);
+      }
+      if (count == 0L) return 0L;
+      long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0L;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return TimeUnit.MICROSECONDS.toNanos(Math.min(Histogram.highestValue(i), maxMicros));
+        }
+      }
+      return maxNanos();
+    }
+
+    @Override public String toString() {
+      return host + " " + protocol + " " + phase + " count=" + count
+          + " p50=" + TimeUnit.NANOSECONDS.toMicros(percentileNanos(50.0)) + "us"
+          + " p99=" + TimeUnit.NANOSECONDS.toMicros(percentileNanos(99.0)) + "us"
+          + " max=" + maxMicros + "us";
+    }
+  }
+}
@@ -15,6 +15,8 @@
  */
 package okhttp3;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -27,7 +29,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
@@ -40,9 +44,13 @@ import javax.net.ssl.X509TrustManager;
 import okhttp3.internal.Internal;
 import okhttp3.internal.Util;
 import okhttp3.internal.cache.InternalCache;
+import okhttp3.internal.cache2.CoalescingInterceptor;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
 import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http.HedgedExchange;
+import okhttp3.internal.http.HedgingPolicy;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
 import okhttp3.internal.platform.Platform;
 import okhttp3.internal.tls.CertificateChainCleaner;
 import okhttp3.internal.tls.OkHostnameVerifier;
@@ -187,6 +195,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       @Override public Call newWebSocketCall(OkHttpClient client, Request originalRequest) {
         return new RealCall(client, originalRequest, true);
       }
+
+      @Override public HedgingPolicy hedgingPolicy(OkHttpClient client) {
+        return client.hedgingPolicy;
+      }
+
+      @Override public HedgedExchange hedgedExchange(Call call) {
+        return ((RealCall) call).retryAndFollowUpInterceptor.hedgedExchange();
+      }
     };
   }
 
@@ -201,6 +217,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
   final CookieJar cookieJar;
   final Cache cache;
   final InternalCache internalCache;
+  final CoalescingInterceptor coalescingInterceptor;
   final SocketFactory socketFactory;
   final SSLSocketFactory sslSocketFactory;
   final CertificateChainCleaner certificateChainCleaner;
@@ -217,6 +234,10 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
   final int readTimeout;
   final int writeTimeout;
   final int pingInterval;
+  final int callTimeout;
+  final HedgingPolicy hedgingPolicy;
+  final List<Interceptor> callInterceptorChain;
+  final List<Interceptor> webSocketInterceptorChain;
 
   public OkHttpClient() {
     this(new Builder());
@@ -234,6 +255,9 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     this.cookieJar = builder.cookieJar;
     this.cache = builder.cache;
     this.internalCache = builder.internalCache;
+    this.coalescingInterceptor = builder.coalescingDirectory != null
+        ? new CoalescingInterceptor(builder.coalescingDirectory)
+        : null;
     this.socketFactory = builder.socketFactory;
 
     boolean isTLS = false;
@@ -264,6 +288,12 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     this.readTimeout = builder.readTimeout;
     this.writeTimeout = builder.writeTimeout;
     this.pingInterval = builder.pingInterval;
+    this.callTimeout = builder.callTimeout;
+    this.hedgingPolicy = builder.hedgeDelay != 0
+        ? new HedgingPolicy(TimeUnit.MILLISECONDS.toNanos(builder.hedgeDelay))
+        : null;
+    this.callInterceptorChain = RealCall.interceptorChain(this, false);
+    this.webSocketInterceptorChain = RealCall.interceptorChain(this, true);
   }
 
   private X509TrustManager systemDefaultTrustManager() {
@@ -312,6 +342,22 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return pingInterval;
   }
 
+  /** Default timeout for complete calls (in milliseconds). */
+  public int callTimeoutMillis() {
+    return callTimeout;
+  }
+
+  /**
+   * 对冲请求的最小延迟（毫秒），0表示不对冲
+   * Minimum delay before an idempotent request is hedged (in milliseconds), or 0 if hedging is
+   * disabled.
+   */
+  public int hedgeDelayMillis() {
+    return hedgingPolicy != null
+        ? (int) TimeUnit.NANOSECONDS.toMillis(hedgingPolicy.minDelayNanos())
+        : 0;
+  }
+
   public Proxy proxy() {
     return proxy;
   }
@@ -332,6 +378,15 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return cache != null ? cache.internalCache : internalCache;
   }
 
+  /**
+   * 返回用于合并相同请求的目录，如果没有开启合并则返回null
+   * Returns the directory that coalesced responses are relayed through, or null if {@linkplain
+   * Builder#coalesceRequests request coalescing} is disabled.
+   */
+  public File coalescingDirectory() {
+    return coalescingInterceptor != null ? coalescingInterceptor.directory() : null;
+  }
+
   public Dns dns() {
     return dns;
   }
@@ -406,8 +461,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return networkInterceptors;
   }
 
-  // TODO(jwilson): make this public after the 3.7 release.
-  /*public*/ EventListener.Factory eventListenerFactory() {
+  public EventListener.Factory eventListenerFactory() {
     return eventListenerFactory;
   }
 
@@ -427,6 +481,79 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return webSocket;
   }
 
+  /**
+   * 提前建立到{@code url}的connections，包括TLS和ALPN，然后让它们在pool中空闲
+   * Connects to {@code url}'s host ahead of time so that the first calls don't pay for DNS, TCP,
+   * TLS and ALPN. This makes sure that up to {@code connectionCount} connections to the address are
+   * in the {@linkplain #connectionPool() pool}, connecting new ones as needed, and leaves them
+   * idle.
+   *
+   * <p>The count is capped at the pool's maximum number of idle connections and at the host's
+   * {@linkplain ConnectionPool#setHostPolicy maximum connections}. An HTTP/2 connection
+   * carries many calls at once, so only one is opened to an HTTP/2 server.
+   *
+   * <p>This blocks until the connections are established. Returns the number of connections to the
+   * address that are warm, which is less than {@code connectionCount} if the count was capped, the
+   * server speaks HTTP/2, or a connect failed after some connections were warmed.
+   *
+   * @throws IOException if no connection could be established.
+   */
+  public int prewarm(HttpUrl url, int connectionCount) throws IOException {
+    if (connectionCount < 0) throw new IllegalArgumentException("connectionCount < 0");
+    Address address = RetryAndFollowUpInterceptor.createAddress(this, url);
+    int limit = Math.min(connectionCount, Math.min(connectionPool.maxIdleConnections(),
+        connectionPool.maxConnections(address.url().host())));
+
+    // Hold every connection until we're done, so each allocation needs a different one.
+    List<StreamAllocation> allocations = new ArrayList<>(limit);
+    List<RealConnection> warm = new ArrayList<>(limit);
+    IOException failure = null;
+    try {
+      for (int i = 0; i < limit; i++) {
+        StreamAllocation allocation = new StreamAllocation(
+            connectionPool, address, null, EventListener.NONE, null);
+        allocations.add(allocation);
+        RealConnection connection;
+        try {
+          connection = allocation.acquireConnection(this);
+        } catch (IOException e) {
+          allocation.streamFailed(e);
+          failure = e;
+          break;
+        }
+        // The pool gave us a connection we already hold. It's multiplexed and we're done.
+        if (warm.contains(connection)) break;
+        warm.add(connection);
+      }
+    } finally {
+      for (StreamAllocation allocation : allocations) {
+        allocation.release();
+      }
+    }
+
+    if (warm.isEmpty() && failure != null) throw failure;
+    return warm.size();
+  }
+
+  /**
+   * Like {@link #prewarm} but connects on the {@linkplain #dispatcher() dispatcher's} executor.
+   * The returned future yields the number of warm connections once they are established.
+   */
+  public Future<Integer> prewarmAsync(final HttpUrl url, final int connectionCount) {
+    if (connectionCount < 0) throw new IllegalArgumentException("connectionCount < 0");
+    return dispatcher.executorService().submit(new Callable<Integer>() {
+      @Override public Integer call() throws IOException {
+        String oldName = Thread.currentThread().getName();
+        Thread.currentThread().setName("OkHttp prewarm " + url.redact());
+        try {
+          return prewarm(url, connectionCount);
+        } finally {
+          Thread.currentThread().setName(oldName);
+        }
+      }
+    });
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -443,6 +570,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     CookieJar cookieJar;
     Cache cache;
     InternalCache internalCache;
+    File coalescingDirectory;
     SocketFactory socketFactory;
     SSLSocketFactory sslSocketFactory;
     CertificateChainCleaner certificateChainCleaner;
@@ -459,6 +587,8 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     int readTimeout;
     int writeTimeout;
     int pingInterval;
+    int callTimeout;
+    int hedgeDelay;
 
     public Builder() {
       dispatcher = new Dispatcher();
@@ -481,6 +611,8 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       readTimeout = 10_000;
       writeTimeout = 10_000;
       pingInterval = 0;
+      callTimeout = 0;
+      hedgeDelay = 0;
     }
 
     Builder(OkHttpClient okHttpClient) {
@@ -495,6 +627,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       this.cookieJar = okHttpClient.cookieJar;
       this.internalCache = okHttpClient.internalCache;
       this.cache = okHttpClient.cache;
+      this.coalescingDirectory = okHttpClient.coalescingDirectory();
       this.socketFactory = okHttpClient.socketFactory;
       this.sslSocketFactory = okHttpClient.sslSocketFactory;
       this.certificateChainCleaner = okHttpClient.certificateChainCleaner;
@@ -511,6 +644,8 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       this.readTimeout = okHttpClient.readTimeout;
       this.writeTimeout = okHttpClient.writeTimeout;
       this.pingInterval = okHttpClient.pingInterval;
+      this.callTimeout = okHttpClient.callTimeout;
+      this.hedgeDelay = okHttpClient.hedgeDelayMillis();
     }
 
     /**
@@ -554,6 +689,45 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       return this;
     }
 
+    /**
+     * 设置整个调用的超时时间
+     * Sets the default timeout for complete calls. A value of 0 means no timeout, otherwise values
+     * must be between 1 and {@link Integer#MAX_VALUE} when converted to milliseconds.
+     *
+     * <p>The call timeout spans the entire call: resolving DNS, connecting, writing the request
+     * body, server processing, retries and follow-ups, and reading the response body. If the call
+     * requires redirects or retries all must complete within one timeout period. When it elapses
+     * the call is canceled and fails with an {@link java.io.InterruptedIOException}. Use {@link
+     * Call#timeout()} to change the timeout of a single call.
+     *
+     * <p>The default value is 0, which imposes no timeout. Web socket calls are never subject to
+     * the call timeout.
+     */
+    public Builder callTimeout(long timeout, TimeUnit unit) {
+      callTimeout = checkDuration("timeout", timeout, unit);
+      return this;
+    }
+
+    /**
+     * 开启对冲请求：如果一个幂等请求的响应头迟迟没有到达，就在另一条路线上发送第二次请求
+     * Enables hedged requests. When the response headers of a {@code GET} or {@code HEAD} request
+     * haven't arrived after a delay, a second attempt is sent, preferring a different route to the
+     * same host. Whichever attempt returns response headers first is used and the other is
+     * canceled. This trades a little extra load for lower tail latency against replicated servers.
+     *
+     * <p>The delay is the greater of {@code delay} and the 95th percentile time to response
+     * headers observed for the request's host. The default value is 0, which disables hedging.
+     * Requests with a body and web socket calls are never hedged.
+     *
+     * <p>Only the network request is sent twice: application interceptors, the cookie jar, the
+     * cache and {@linkplain #coalesceRequests request coalescing} see the call once, while network
+     * interceptors see each attempt.
+     */
+    public Builder hedgeDelay(long delay, TimeUnit unit) {
+      hedgeDelay = checkDuration("delay", delay, unit);
+      return this;
+    }
+
     private static int checkDuration(String name, long duration, TimeUnit unit) {
       if (duration < 0) throw new IllegalArgumentException(name + " < 0");
       if (unit == null) throw new NullPointerException("unit == null");
@@ -611,6 +785,22 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       return this;
     }
 
+    /**
+     * 合并同时进行的相同GET请求
+     * Coalesces identical GET requests that are in flight at the same time: the first request goes
+     * to the network and the others wait for its response. The response body is read from the
+     * network once and replicated to every waiting call through a temporary file in {@code
+     * directory}, which is deleted when every copy of the body is closed.
+     *
+     * <p>Only requests with the same URL and the same headers are coalesced, and only with
+     * requests that are on the network: responses served by the {@linkplain #cache cache} are not
+     * affected. Pass null to disable coalescing, which is the default.
+     */
+    public Builder coalesceRequests(File directory) {
+      this.coalescingDirectory = directory;
+      return this;
+    }
+
     /**
      * Sets the DNS service used to lookup IP addresses for hostnames.
      *
@@ -886,15 +1076,26 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       return this;
     }
 
-    // TODO(jwilson): make this public after the 3.7 release.
-    /*public*/ Builder eventListener(EventListener eventListener) {
+    /**
+     * 设置一个接收所有调用事件的监听器
+     * Configure a single client scoped listener that will receive all analytic events for this
+     * client.
+     *
+     * @see EventListener for semantics and restrictions on listener implementations.
+     */
+    public Builder eventListener(EventListener eventListener) {
       if (eventListener == null) throw new NullPointerException("eventListener == null");
       this.eventListenerFactory = EventListener.factory(eventListener);
       return this;
     }
 
-    // TODO(jwilson): make this public after the 3.7 release.
-    /*public*/ Builder eventListenerFactory(EventListener.Factory eventListenerFactory) {
+    /**
+     * Configure a factory to provide per-call scoped listeners that will receive analytic events
+     * for this client.
+     *
+     * @see EventListener for semantics and restrictions on listener implementations.
+     */
+    public Builder eventListenerFactory(EventListener.Factory eventListenerFactory) {
       if (eventListenerFactory == null) {
         throw new NullPointerException("eventListenerFactory == null");
       }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+/**
+ * 异步请求的调度优先级
+ * How urgently a {@linkplain Call#enqueue(Callback) asynchronous call} should run relative to
+ * other calls waiting in the {@link Dispatcher}. Priority only affects the order in which queued
+ * calls are promoted; it doesn't preempt calls that are already running.
+ *
+ * <p>Waiting calls age: each step of priority is worth {@linkplain Dispatcher#setPriorityAging
+ * a fixed amount} of time spent in the queue, so low priority calls are delayed but never starved.
+ *
+ * <p>On HTTP/2 connections the priority is also sent as the stream's weight, and it decides how
+ * request bodies that compete for the connection's flow-control window share it.
+ */
+public enum Priority {
+  /** Background work like prefetches that can wait behind everything else. */
+  LOW,
+
+  /** The default for calls that don't specify a priority. */
+  NORMAL,
+
+  /** User-facing work that should skip ahead of queued background calls. */
+  HIGH
+}
@@ -16,9 +16,13 @@
 package okhttp3;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
 import okhttp3.internal.cache.CacheInterceptor;
 import okhttp3.internal.connection.ConnectInterceptor;
 import okhttp3.internal.connection.StreamAllocation;
@@ -27,13 +31,22 @@ import okhttp3.internal.http.CallServerInterceptor;
 import okhttp3.internal.http.RealInterceptorChain;
 import okhttp3.internal.http.RetryAndFollowUpInterceptor;
 import okhttp3.internal.platform.Platform;
+import okio.AsyncTimeout;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static okhttp3.internal.platform.Platform.INFO;
 
 final class RealCall implements Call {
   final OkHttpClient client;
   final RetryAndFollowUpInterceptor retryAndFollowUpInterceptor;
   final EventListener eventListener;
+  private final AsyncTimeout timeout;
 
   /**
    * 应用的原始请求纯粹的重定向或者auth headers
@@ -51,6 +64,14 @@ final class RealCall implements Call {
     this.originalRequest = originalRequest;
     this.forWebSocket = forWebSocket;
     this.retryAndFollowUpInterceptor = new RetryAndFollowUpInterceptor(client, forWebSocket);
+    this.timeout = new AsyncTimeout() {
+      @Override protected void timedOut() {
+        cancel();
+      }
+    };
+    if (!forWebSocket) {
+      this.timeout.timeout(client.callTimeoutMillis(), MILLISECONDS);
+    }
 
     // TODO(jwilson): this is unsafe publication and not threadsafe.
     this.eventListener = eventListenerFactory.create(this);
@@ -67,12 +88,27 @@ final class RealCall implements Call {
       executed = true;
     }
     captureCallStackTrace();
+    timeout.enter();
+    eventListener.fetchStart(this);
+    boolean bodyOwnsTimeout = false;
     try {
       client.dispatcher().executed(this);
       Response result = getResponseWithInterceptorChain();
       if (result == null) throw new IOException("Canceled");
-      return result;
+      eventListener.fetchEnd(this, null);
+      bodyOwnsTimeout = true;
+      return timeoutResponseBody(result);
+    } catch (IOException e) {
+      IOException failure = timeoutExit(e);
+      eventListener.fetchEnd(this, failure);
+      throw failure;
+    } catch (RuntimeException | Error e) {
+      eventListener.fetchEnd(this, e);
+      throw e;
     } finally {
+      // Unless the response body now bounds reading with it, don't let the timeout fire later
+      // and cancel a call that has already finished.
+      if (!bodyOwnsTimeout) timeout.exit();
       client.dispatcher().finished(this);
     }
   }
@@ -88,7 +124,18 @@ final class RealCall implements Call {
       executed = true;
     }
     captureCallStackTrace();
-    client.dispatcher().enqueue(new AsyncCall(responseCallback));
+    client.dispatcher().enqueue(new AsyncCall(responseCallback, null));
+  }
+
+  @Override public CallFuture executeAsync() {
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Already Executed");
+      executed = true;
+    }
+    captureCallStackTrace();
+    CallFuture future = new CallFuture(this);
+    client.dispatcher().enqueue(new AsyncCall(null, future));
+    return future;
   }
 
   @Override public void cancel() {
@@ -103,6 +150,71 @@ final class RealCall implements Call {
     return retryAndFollowUpInterceptor.isCanceled();
   }
 
+  @Override public Timeout timeout() {
+    return timeout;
+  }
+
+  /**
+   * Stops the call timeout. Returns {@code cause}, or a timeout exception caused by it if the
+   * timeout had already elapsed and canceled this call.
+   */
+  IOException timeoutExit(IOException cause) {
+    if (!timeout.exit()) return cause;
+
+    InterruptedIOException e = new InterruptedIOException("timeout");
+    if (cause != null) e.initCause(cause);
+    return e;
+  }
+
+  /**
+   * Returns {@code response} with a body that stops the call timeout when it is exhausted or
+   * closed, so that the timeout also bounds reading the body.
+   */
+  private Response timeoutResponseBody(Response response) {
+    if (timeout.timeoutNanos() == 0L && !timeout.hasDeadline()) return response; // Not armed.
+
+    final ResponseBody body = response.body();
+    if (body == null) {
+      timeout.exit();
+      return response;
+    }
+
+    Source source = new ForwardingSource(body.source()) {
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        try {
+          long result = super.read(sink, byteCount);
+          if (result == -1L) timeout.exit();
+          return result;
+        } catch (IOException e) {
+          throw timeoutExit(e);
+        }
+      }
+
+      @Override public void close() throws IOException {
+        timeout.exit();
+        super.close();
+      }
+    };
+    // Only the source changes. Interceptors and the cache may have built a body whose type and
+    // length don't match the headers, so take those from the body.
+    final BufferedSource bufferedSource = Okio.buffer(source);
+    return response.newBuilder()
+        .body(new ResponseBody() {
+          @Override public MediaType contentType() {
+            return body.contentType();
+          }
+
+          @Override public long contentLength() {
+            return body.contentLength();
+          }
+
+          @Override public BufferedSource source() {
+            return bufferedSource;
+          }
+        })
+        .build();
+  }
+
   @SuppressWarnings("CloneDoesntCallSuperClone") // We are a final type & this saves clearing state.
   @Override public RealCall clone() {
     return new RealCall(client, originalRequest, forWebSocket);
@@ -113,11 +225,28 @@ final class RealCall implements Call {
   }
 
   final class AsyncCall extends NamedRunnable {
+    /** Exactly one of the callback and the future is non-null. */
     private final Callback responseCallback;
+    private final CallFuture future;
+
+    // Guarded by the dispatcher.
+    long enqueuedAtNanos;
+    /** Ready calls with a lower rank run first. */
+    long rank;
+    long sequence;
 
-    AsyncCall(Callback responseCallback) {
+    /**
+     * How long the exchange took, or -1 if it was canceled. Read by the dispatcher to adapt
+     * per-host limits.
+     */
+    long exchangeNanos = -1L;
+    /** True if the exchange failed or the server answered with an error. */
+    boolean exchangeFailed;
+
+    AsyncCall(Callback responseCallback, CallFuture future) {
       super("OkHttp %s", redactedUrl());
       this.responseCallback = responseCallback;
+      this.future = future;
     }
 
     String host() {
@@ -128,32 +257,128 @@ final class RealCall implements Call {
       return originalRequest;
     }
 
+    Priority priority() {
+      return originalRequest.priority();
+    }
+
     RealCall get() {
       return RealCall.this;
     }
 
     @Override protected void execute() {
       boolean signalledCallback = false;
+      boolean bodyOwnsTimeout = false;
+      long startNanos = System.nanoTime();
+      timeout.enter();
+      eventListener.fetchStart(RealCall.this);
       try {
         Response response = getResponseWithInterceptorChain();
         if (retryAndFollowUpInterceptor.isCanceled()) {
           signalledCallback = true;
-          responseCallback.onFailure(RealCall.this, new IOException("Canceled"));
+          IOException failure = timeoutExit(new IOException("Canceled"));
+          eventListener.fetchEnd(RealCall.this, failure);
+          deliverFailure(failure);
         } else {
+          exchangeNanos = System.nanoTime() - startNanos;
+          exchangeFailed = response.code() >= 500;
           signalledCallback = true;
-          responseCallback.onResponse(RealCall.this, response);
+          eventListener.fetchEnd(RealCall.this, null);
+          bodyOwnsTimeout = true;
+          deliverResponse(timeoutResponseBody(response));
         }
       } catch (IOException e) {
         if (signalledCallback) {
           // Do not signal the callback twice!
           Platform.get().log(INFO, "Callback failure for " + toLoggableString(), e);
         } else {
-          responseCallback.onFailure(RealCall.this, e);
+          IOException failure = timeoutExit(e);
+          if (failure != e || !retryAndFollowUpInterceptor.isCanceled()) {
+            exchangeNanos = System.nanoTime() - startNanos; // Timeouts count; other cancels don't.
+            exchangeFailed = true;
+          }
+          eventListener.fetchEnd(RealCall.this, failure);
+          deliverFailure(failure);
         }
+      } catch (RuntimeException | Error e) {
+        if (!signalledCallback) eventListener.fetchEnd(RealCall.this, e);
+        throw e;
       } finally {
+        if (!bodyOwnsTimeout) timeout.exit();
         client.dispatcher().finished(this);
       }
     }
+
+    /** Fails this call without running it. */
+    void reject(IOException e) {
+      deliverFailure(e);
+    }
+
+    /**
+     * Signals {@code response} on the dispatcher's callback executor, or on this thread if it
+     * has none. Once handed off the callback no longer holds this call's running slot.
+     */
+    private void deliverResponse(final Response response) throws IOException {
+      boolean handedOff = client.dispatcher().getCallbackExecutor() != null
+          && handOff(new NamedRunnable("OkHttp %s callback", redactedUrl()) {
+            @Override protected void execute() {
+              try {
+                signalResponse(response);
+              } catch (IOException e) {
+                Platform.get().log(INFO, "Callback failure for " + toLoggableString(), e);
+              }
+            }
+          });
+      if (!handedOff) signalResponse(response);
+    }
+
+    private void deliverFailure(final IOException e) {
+      boolean handedOff = client.dispatcher().getCallbackExecutor() != null
+          && handOff(new NamedRunnable("OkHttp %s callback", redactedUrl()) {
+            @Override protected void execute() {
+              signalFailure(e);
+            }
+          });
+      if (!handedOff) signalFailure(e);
+    }
+
+    /**
+     * Submits {@code callback} to the dispatcher's callback executor, recording how long it waits
+     * there. Returns false if there is no executor or it rejected the callback.
+     */
+    private boolean handOff(final Runnable callback) {
+      final Dispatcher dispatcher = client.dispatcher();
+      Executor callbackExecutor = dispatcher.getCallbackExecutor();
+      if (callbackExecutor == null) return false;
+
+      final long handedOffAtNanos = System.nanoTime();
+      try {
+        callbackExecutor.execute(new Runnable() {
+          @Override public void run() {
+            dispatcher.callbackStarted(System.nanoTime() - handedOffAtNanos);
+            callback.run();
+          }
+        });
+        return true;
+      } catch (RejectedExecutionException e) {
+        return false;
+      }
+    }
+
+    private void signalResponse(Response response) throws IOException {
+      if (future != null) {
+        future.complete(response);
+      } else {
+        responseCallback.onResponse(RealCall.this, response);
+      }
+    }
+
+    private void signalFailure(IOException e) {
+      if (future != null) {
+        future.fail(e);
+      } else {
+        responseCallback.onFailure(RealCall.this, e);
+      }
+    }
   }
 
   /**
@@ -171,20 +396,47 @@ final class RealCall implements Call {
   }
 
   Response getResponseWithInterceptorChain() throws IOException {
-    // Build a full stack of interceptors.
+    // The client built the full stack of interceptors once for all of its calls.
+    List<Interceptor> interceptors = forWebSocket
+        ? client.webSocketInterceptorChain
+        : client.callInterceptorChain;
+    Interceptor.Chain chain = new RealInterceptorChain(
+        interceptors, null, null, null, 0, originalRequest, this, eventListener);
+    return chain.proceed(originalRequest);
+  }
+
+  /**
+   * 构建一个client所有调用共享的拦截器栈
+   * Builds the full stack of interceptors shared by every call of {@code client}: application
+   * interceptors, the OkHttp core, network interceptors, and finally the network caller. The
+   * interceptors are stateless except for {@link #RETRY_AND_FOLLOW_UP}, which hands off to the
+   * proceeding call's own interceptor.
+   */
+  static List<Interceptor> interceptorChain(OkHttpClient client, boolean forWebSocket) {
     List<Interceptor> interceptors = new ArrayList<>();
     interceptors.addAll(client.interceptors());
-    interceptors.add(retryAndFollowUpInterceptor);
+    interceptors.add(RETRY_AND_FOLLOW_UP);
     interceptors.add(new BridgeInterceptor(client.cookieJar()));
     interceptors.add(new CacheInterceptor(client.internalCache()));
+    if (client.coalescingInterceptor != null && !forWebSocket) {
+      interceptors.add(client.coalescingInterceptor);
+    }
     interceptors.add(new ConnectInterceptor(client));
     if (!forWebSocket) {
       interceptors.addAll(client.networkInterceptors());
     }
     interceptors.add(new CallServerInterceptor(forWebSocket));
-
-    Interceptor.Chain chain = new RealInterceptorChain(
-        interceptors, null, null, null, 0, originalRequest);
-    return chain.proceed(originalRequest);
+    return Util.immutableList(interceptors);
   }
+
+  /**
+   * Stands in for the per-call {@link RetryAndFollowUpInterceptor} in the shared interceptor
+   * stack, which holds the state that canceling a call needs.
+   */
+  static final Interceptor RETRY_AND_FOLLOW_UP = new Interceptor() {
+    @Override public Response intercept(Chain chain) throws IOException {
+      RealCall call = (RealCall) ((RealInterceptorChain) chain).call();
+      return call.retryAndFollowUpInterceptor.intercept(chain);
+    }
+  };
 }
@@ -21,6 +21,7 @@ public final class Request {
     final Headers headers;
     final RequestBody body;
     final Object tag;
+    final Priority priority;
 
     private volatile CacheControl cacheControl; // Lazily initialized.
 
@@ -30,6 +31,7 @@ public final class Request {
         this.headers = builder.headers.build();
         this.body = builder.body;
         this.tag = builder.tag != null ? builder.tag : this;
+        this.priority = builder.priority;
     }
 
     public HttpUrl url() {
@@ -60,6 +62,15 @@ public final class Request {
         return tag;
     }
 
+    /**
+     * 返回这个请求在dispatcher队列中的优先级
+     * Returns how urgently this request should be promoted from the {@link Dispatcher}'s queue
+     * when it is {@linkplain Call#enqueue enqueued}. This is never null.
+     */
+    public Priority priority() {
+        return priority;
+    }
+
     public Builder newBuilder() {
         return new Builder(this);
     }
@@ -94,10 +105,12 @@ public final class Request {
         Headers.Builder headers;
         RequestBody body;
         Object tag;
+        Priority priority;
 
         public Builder() {
             this.method = "GET";
             this.headers = new Headers.Builder();
+            this.priority = Priority.NORMAL;
         }
 
         Builder(Request request) {
@@ -105,6 +118,7 @@ public final class Request {
             this.method = request.method;
             this.body = request.body;
             this.tag = request.tag;
+            this.priority = request.priority;
             this.headers = request.headers.newBuilder();
         }
 
@@ -242,6 +256,17 @@ public final class Request {
             return this;
         }
 
+        /**
+         * Sets the priority of this request when it waits in the {@link Dispatcher}'s queue. Calls
+         * that are executed synchronously ignore it there. On HTTP/2 every call sends it as its
+         * stream's weight.
+         */
+        public Builder priority(Priority priority) {
+            if (priority == null) throw new NullPointerException("priority == null");
+            this.priority = priority;
+            return this;
+        }
+
         public Request build() {
             if (url == null) throw new IllegalStateException("url == null");
             return new Request(this);
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 限制某个host每秒可以开始的请求数量的令牌桶
+ * A token bucket that limits how many calls per second the {@linkplain Dispatcher dispatcher}
+ * starts for the hosts matching a pattern. The bucket holds up to {@link #burst} permits and
+ * refills at {@link #permitsPerSecond}. Each asynchronous call takes one permit as it starts; while
+ * the bucket is empty calls to matching hosts wait in the queue.
+ *
+ * <p>Patterns are either a hostname like {@code api.example.com} or a wildcard like {@code
+ * *.example.com}, which matches exactly one subdomain level as with {@link CertificatePinner}. A
+ * wildcard bucket is shared by every host it matches.
+ *
+ * <p>The bucket is lock free. Its whole state is the time at which it would next be empty, which
+ * is advanced with a compare-and-set for each permit taken.
+ */
+public final class TokenBucket {
+  private static final String WILDCARD = "*.";
+
+  private final String pattern;
+  private final String canonicalHostname;
+  private final double permitsPerSecond;
+  private final int burst;
+  private final long intervalNanos;
+  private final long capacityNanos;
+
+  /** The time at which every permit taken so far will have been paid back. */
+  private final AtomicLong paidUpAtNanos;
+  private final AtomicLong throttledCount = new AtomicLong();
+
+  TokenBucket(String pattern, double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0 || Double.isNaN(permitsPerSecond)) {
+      throw new IllegalArgumentException("permitsPerSecond <= 0: " + permitsPerSecond);
+    }
+    if (burst < 1) throw new IllegalArgumentException("burst < 1: " + burst);
+    HttpUrl url = HttpUrl.parse("http://"
+        + (pattern.startsWith(WILDCARD) ? pattern.substring(WILDCARD.length()) : pattern));
+    if (url == null) throw new IllegalArgumentException("unexpected host pattern: " + pattern);
+
+    this.pattern = pattern;
+    this.canonicalHostname = url.host();
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+    this.capacityNanos = intervalNanos * burst;
+    this.paidUpAtNanos = new AtomicLong(System.nanoTime());
+  }
+
+  public String pattern() {
+    return pattern;
+  }
+
+  public double permitsPerSecond() {
+    return permitsPerSecond;
+  }
+
+  public int burst() {
+    return burst;
+  }
+
+  /** Returns the number of calls that could start right now. */
+  public int availablePermits() {
+    long now = System.nanoTime();
+    long debtNanos = Math.max(0L, paidUpAtNanos.get() - now);
+    return (int) ((capacityNanos - debtNanos) / intervalNanos);
+  }
+
+  /** Returns the number of times a call was held in the queue because this bucket was empty. */
+  public long throttledCount() {
+    return throttledCount.get();
+  }
+
+  boolean matches(String hostname) {
+    if (pattern.startsWith(WILDCARD)) {
+      int firstDot = hostname.indexOf('.');
+      return firstDot != -1 && hostname.length() - firstDot - 1 == canonicalHostname.length()
+          && hostname.regionMatches(false, firstDot + 1, canonicalHostname, 0,
+          canonicalHostname.length());
+    }
+    return hostname.equals(canonicalHostname);
+  }
+
+  /** Takes a permit if one is available at {@code now}. */
+  boolean tryAcquire(long now) {
+    while (true) {
+      long paidUpAt = paidUpAtNanos.get();
+      long next = Math.max(paidUpAt, now) + intervalNanos;
+      if (next - now > capacityNanos) {
+        throttledCount.incrementAndGet();
+        return false;
+      }
+      if (paidUpAtNanos.compareAndSet(paidUpAt, next)) return true;
+    }
+  }
+
+  /** Returns how long after {@code now} a permit becomes available, or 0 if one already is. */
+  long nanosUntilPermit(long now) {
+    return Math.max(0L, paidUpAtNanos.get() + intervalNanos - capacityNanos - now);
+  }
+
+  @Override public String toString() {
+    return pattern + " " + permitsPerSecond + "/s burst " + burst;
+  }
+}
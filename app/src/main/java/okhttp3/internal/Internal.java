@@ -33,6 +33,8 @@ import okhttp3.internal.cache.InternalCache;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
 import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http.HedgedExchange;
+import okhttp3.internal.http.HedgingPolicy;
 
 /**
  * Escalate internal APIs in {@code okhttp3} so they can be used from OkHttp's implementation
@@ -78,4 +80,8 @@ public abstract class Internal {
   public abstract StreamAllocation streamAllocation(Call call);
 
   public abstract Call newWebSocketCall(OkHttpClient client, Request request);
+
+  public abstract HedgingPolicy hedgingPolicy(OkHttpClient client);
+
+  public abstract HedgedExchange hedgedExchange(Call call);
 }
@@ -24,6 +24,7 @@ import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.internal.Internal;
 import okhttp3.internal.Util;
+import okhttp3.internal.cache2.CoalescingInterceptor;
 import okhttp3.internal.http.HttpCodec;
 import okhttp3.internal.http.HttpHeaders;
 import okhttp3.internal.http.HttpMethod;
@@ -105,6 +106,9 @@ public final class CacheInterceptor implements Interceptor {
     }
 
     //如果我们已经确认有缓存response了，那么我们做一个选择
+    // A coalesced request shares another's response, which that request caches.
+    boolean followerCopy = CoalescingInterceptor.isFollowerCopy(networkResponse);
+
     // If we have a cache response too, then we're doing a conditional get.
     if (cacheResponse != null) {
       if (networkResponse.code() == HTTP_NOT_MODIFIED) {
@@ -120,7 +124,7 @@ public final class CacheInterceptor implements Interceptor {
         // Update the cache after combining headers but before stripping the
         // Content-Encoding header (as performed by initContentStream()).
         cache.trackConditionalCacheHit();
-        cache.update(cacheResponse, response);
+        if (!followerCopy) cache.update(cacheResponse, response);
         return response;
       } else {
         closeQuietly(cacheResponse.body());
@@ -132,7 +136,7 @@ public final class CacheInterceptor implements Interceptor {
         .networkResponse(stripBody(networkResponse))
         .build();
 
-    if (cache != null) {
+    if (cache != null && !followerCopy) {
       if (HttpHeaders.hasBody(response) && CacheStrategy.isCacheable(response, networkRequest)) {
         //提供一个请求来缓存response
         // Offer this request to the cache.
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http.HttpHeaders;
+import okhttp3.internal.http.RealInterceptorChain;
+import okhttp3.internal.http.RealResponseBody;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * 合并同时进行的相同GET请求，只有第一个请求会访问网络
+ * Coalesces identical GET requests that are in flight at the same time. The first request for a
+ * URL goes to the network. Requests for the same {@linkplain Cache#key URL} with the same headers
+ * that arrive while it is in flight wait for its response instead of making their own. The
+ * response body is read from the network once and replicated to every caller through a {@link
+ * Relay}, which spills the stream to a file in {@code directory} so that slow readers don't hold
+ * back fast ones.
+ *
+ * <p>Only the first request's response is offered to the cache. Each waiting request gets a
+ * {@linkplain #isFollowerCopy copy} that the cache skips, so that one response isn't written once
+ * per caller.
+ *
+ * <p>Requests are only coalesced when their headers are identical. As {@code Vary} can only name
+ * request headers this always satisfies it, and it keeps calls with different credentials or
+ * cookies apart. Responses that {@code Vary: *} are never shared.
+ */
+public final class CoalescingInterceptor implements Interceptor {
+  private static final long BUFFER_MAX_SIZE = 64 * 1024L;
+
+  final File directory;
+
+  /** Requests that are on the network, by cache key. Guarded by this. */
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  public CoalescingInterceptor(File directory) {
+    this.directory = directory;
+  }
+
+  public File directory() {
+    return directory;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!request.method().equals("GET") || request.header("Range") != null) {
+      return chain.proceed(request);
+    }
+
+    String key = Cache.key(request.url());
+    Flight flight;
+    boolean leader = false;
+    synchronized (this) {
+      flight = flights.get(key);
+      if (flight == null) {
+        flight = new Flight(request);
+        flights.put(key, flight);
+        leader = true;
+      } else if (!flight.request.headers().equals(request.headers())) {
+        flight = null; // A different variant is in flight. Don't wait for it.
+      } else {
+        flight.followers++;
+      }
+    }
+
+    if (leader) return lead(chain, key, flight);
+
+    if (flight != null) {
+      RealInterceptorChain realChain = (RealInterceptorChain) chain;
+      Response response = follow(key, flight, realChain.call(), realChain.streamAllocation());
+      if (response != null) return response.newBuilder().request(request).build();
+    }
+
+    // Either the leader's response can't be shared or the leader failed.
+    return chain.proceed(request);
+  }
+
+  private Response lead(Chain chain, String key, Flight flight) throws IOException {
+    Response response = null;
+    try {
+      response = chain.proceed(chain.request());
+    } finally {
+      response = land(key, flight, response);
+    }
+    return response;
+  }
+
+  /**
+   * Takes {@code flight} off the list of in-flight requests and hands {@code response} to its
+   * followers. Returns the response for the leader, which reads the body through the relay if it
+   * is shared.
+   */
+  private Response land(String key, Flight flight, Response response) {
+    int followers;
+    synchronized (this) {
+      flights.remove(key);
+      followers = flight.followers;
+    }
+
+    List<Response> responses = Collections.emptyList();
+    if (response != null && followers > 0 && !HttpHeaders.hasVaryAll(response)) {
+      try {
+        responses = relay(response, followers + 1);
+      } catch (IOException e) {
+        // We couldn't create a file to relay through. Followers make their own requests.
+      }
+    }
+
+    flight.complete(responses);
+    return responses.isEmpty() ? response : responses.get(0);
+  }
+
+  /**
+   * Returns {@code count} copies of {@code response} whose bodies all read from a single relay of
+   * the original body. The spill file is deleted once every copy's body is closed.
+   */
+  private List<Response> relay(Response response, int count) throws IOException {
+    final File file = File.createTempFile("okhttp", ".relay", directory);
+    final AtomicInteger openSources = new AtomicInteger(count);
+    Relay relay;
+    try {
+      relay = Relay.edit(file, response.body().source(), ByteString.EMPTY, BUFFER_MAX_SIZE);
+    } catch (IOException e) {
+      file.delete();
+      throw e;
+    }
+
+    List<Response> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Source source = new ForwardingSource(relay.newSource()) {
+        boolean closed;
+
+        @Override public void close() throws IOException {
+          if (closed) return;
+          closed = true;
+          super.close();
+          if (openSources.decrementAndGet() == 0) file.delete();
+        }
+      };
+      ResponseBody body = new RealResponseBody(response.headers(), Okio.buffer(source));
+      // The leader takes the first copy. The others are followers'.
+      result.add(response.newBuilder()
+          .body(i == 0 ? body : new FollowerResponseBody(body))
+          .build());
+    }
+    return result;
+  }
+
+  /**
+   * Waits for the leader of {@code flight} and returns this follower's copy of its response, or
+   * null if it couldn't be shared. The follower never uses its own stream, so canceling {@code
+   * call} can't interrupt the wait by closing it. Instead {@code streamAllocation}, which is
+   * canceled with the call or by its call timeout, wakes the follower to withdraw from the flight.
+   */
+  private Response follow(String key, final Flight flight, Call call,
+      StreamAllocation streamAllocation) throws IOException {
+    streamAllocation.setCancelListener(new Runnable() {
+      @Override public void run() {
+        flight.wake();
+      }
+    });
+    try {
+      if (!flight.await(call)) {
+        withdraw(key, flight);
+        throw new IOException("Canceled");
+      }
+      return flight.take();
+    } catch (InterruptedException e) {
+      withdraw(key, flight);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      streamAllocation.setCancelListener(null);
+    }
+  }
+
+  /**
+   * Returns true if {@code response} is a waiting request's copy of another request's response.
+   * The other request's copy is the one to cache.
+   */
+  public static boolean isFollowerCopy(Response response) {
+    return response.body() instanceof FollowerResponseBody;
+  }
+
+  /** Stops waiting for {@code flight}, releasing this follower's copy if one was already made. */
+  private void withdraw(String key, Flight flight) {
+    synchronized (this) {
+      if (flights.get(key) == flight) {
+        flight.followers--; // The leader hasn't counted us yet.
+        return;
+      }
+    }
+
+    // The leader has already made our copy. Close it so the relay isn't leaked.
+    closeQuietly(flight.awaitUninterruptibly());
+  }
+
+  /** A request on the network and the requests that are waiting for its response. */
+  static final class Flight {
+    final Request request;
+
+    /** The number of requests waiting for this one. Guarded by the interceptor. */
+    int followers;
+
+    /** Null until the leader's response arrives. Guarded by this. */
+    private List<Response> responses;
+    private int nextResponse = 1; // The leader takes the first response.
+
+    Flight(Request request) {
+      this.request = request;
+    }
+
+    synchronized void complete(List<Response> responses) {
+      this.responses = responses;
+      notifyAll();
+    }
+
+    /**
+     * Waits for the leader's response until it arrives or {@code call} is canceled. Returns true if
+     * it has arrived. Canceling must be followed by a call to {@link #wake}.
+     */
+    synchronized boolean await(Call call) throws InterruptedException {
+      while (responses == null && !call.isCanceled()) {
+        wait();
+      }
+      return responses != null;
+    }
+
+    /** Wakes followers so that they notice their call was canceled. */
+    synchronized void wake() {
+      notifyAll();
+    }
+
+    /** Returns the next follower's copy of the response, or null if it isn't shared. */
+    synchronized Response take() {
+      return nextResponse < responses.size() ? responses.get(nextResponse++) : null;
+    }
+
+    synchronized Response awaitUninterruptibly() {
+      boolean interrupted = false;
+      try {
+        while (responses == null) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        return take();
+      } finally {
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** The body of a follower's copy of a response, which the cache skips. */
+  static final class FollowerResponseBody extends ResponseBody {
+    private final ResponseBody delegate;
+
+    FollowerResponseBody(ResponseBody delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() {
+      return delegate.contentLength();
+    }
+
+    @Override public BufferedSource source() {
+      return delegate.source();
+    }
+  }
+}
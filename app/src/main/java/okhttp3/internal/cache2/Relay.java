@@ -401,17 +401,26 @@ final class Relay {
       fileOperator = null;
 
       RandomAccessFile fileToClose = null;
+      Source upstreamToClose = null;
       synchronized (Relay.this) {
         sourceCount--;
         if (sourceCount == 0) {
           fileToClose = file;
           file = null;
+          // Nobody is left to read the rest of upstream. Release it rather than leak it.
+          if (!complete) {
+            upstreamToClose = upstream;
+            upstream = null;
+          }
         }
       }
 
       if (fileToClose != null) {
         closeQuietly(fileToClose);
       }
+      if (upstreamToClose != null) {
+        closeQuietly(upstreamToClose);
+      }
     }
   }
 }
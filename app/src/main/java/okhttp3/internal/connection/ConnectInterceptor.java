@@ -8,6 +8,8 @@ import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.internal.Internal;
+import okhttp3.internal.http.HedgedExchange;
 import okhttp3.internal.http.HttpCodec;
 import okhttp3.internal.http.RealInterceptorChain;
 
@@ -29,6 +31,13 @@ public final class ConnectInterceptor implements Interceptor {
         // 我们需要网络来满足这个request，可能准备一个验证的条件GET
         // We need the network to satisfy this request. Possibly for validating a conditional GET.
         boolean doExtensiveHealthChecks = !request.method().equals("GET");
+
+        // A hedged attempt branches here, below the interceptors that must see the call only once.
+        HedgedExchange hedgedExchange = Internal.instance.hedgedExchange(realChain.call());
+        if (hedgedExchange != null && hedgedExchange.hedges(streamAllocation)) {
+            return hedgedExchange.proceed(realChain, request, doExtensiveHealthChecks);
+        }
+
         HttpCodec httpCodec = streamAllocation.newStream(client, doExtensiveHealthChecks);
         RealConnection connection = streamAllocation.connection();
 
@@ -19,6 +19,7 @@ package okhttp3.internal.connection;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.net.ConnectException;
+import java.net.InetAddress;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.Socket;
@@ -27,16 +28,20 @@ import java.net.SocketTimeoutException;
 import java.net.UnknownServiceException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import okhttp3.Address;
+import okhttp3.Call;
 import okhttp3.CertificatePinner;
 import okhttp3.Connection;
 import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
+import okhttp3.EventListener;
 import okhttp3.Handshake;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
@@ -54,6 +59,7 @@ import okhttp3.internal.http2.ErrorCode;
 import okhttp3.internal.http2.Http2Codec;
 import okhttp3.internal.http2.Http2Connection;
 import okhttp3.internal.http2.Http2Stream;
+import okhttp3.internal.http2.Ping;
 import okhttp3.internal.platform.Platform;
 import okhttp3.internal.tls.OkHostnameVerifier;
 import okhttp3.internal.ws.RealWebSocket;
@@ -87,7 +93,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   private BufferedSource source;
   private BufferedSink sink;
 
-  // The fields below track connection state and are guarded by connectionPool.
+  // The fields below track connection state and are guarded by this connection. Code that also
+  // holds a stream allocation must lock the allocation first.
 
   /** If true, no new streams can be created on this connection. Once true this is always true. */
   public boolean noNewStreams;
@@ -106,6 +113,21 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   /** Nanotime timestamp when {@code allocations.size()} reached zero. */
   public long idleAtNanos = Long.MAX_VALUE;
 
+  /** Nanotime timestamp of the last background health check that found this connection healthy. */
+  public long healthyAtNanos = Long.MIN_VALUE;
+
+  /** True while the pool's health check owns this idle connection. No streams may be created. */
+  public boolean healthCheckInProgress;
+
+  /** A ping the pool's health check sent and hasn't yet seen answered, or null. */
+  public Ping healthCheckPing;
+
+  /** Nanotime timestamp when {@link #healthCheckPing} was sent. */
+  public long healthCheckPingAtNanos;
+
+  /** Other hosts whose calls this HTTP/2 connection has been verified to carry. */
+  private final Set<String> coalescedHosts = new HashSet<>();
+
   public RealConnection(ConnectionPool connectionPool, Route route) {
     this.connectionPool = connectionPool;
     this.route = route;
@@ -119,8 +141,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     return result;
   }
 
-  public void connect(
-      int connectTimeout, int readTimeout, int writeTimeout, boolean connectionRetryEnabled) {
+  public void connect(int connectTimeout, int readTimeout, int writeTimeout,
+      boolean connectionRetryEnabled, Call call, EventListener eventListener) {
     if (protocol != null) throw new IllegalStateException("already connected");
 
     RouteException routeException = null;
@@ -139,16 +161,21 @@ public final class RealConnection extends Http2Connection.Listener implements Co
       }
     }
 
+    InetAddress address = route.socketAddress().getAddress();
+    int port = route.socketAddress().getPort();
     while (true) {
+      eventListener.connectStart(call, address, port);
       try {
         if (route.requiresTunnel()) {
           connectTunnel(connectTimeout, readTimeout, writeTimeout);
         } else {
           connectSocket(connectTimeout, readTimeout);
         }
-        establishProtocol(connectionSpecSelector);
+        establishProtocol(connectionSpecSelector, call, eventListener);
+        eventListener.connectEnd(call, address, port, protocol.toString(), null);
         break;
       } catch (IOException e) {
+        eventListener.connectEnd(call, address, port, null, e);
         closeQuietly(socket);
         closeQuietly(rawSocket);
         socket = null;
@@ -172,7 +199,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     }
 
     if (http2Connection != null) {
-      synchronized (connectionPool) {
+      synchronized (this) {
         allocationLimit = http2Connection.maxConcurrentStreams();
       }
     }
@@ -228,20 +255,29 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     sink = Okio.buffer(Okio.sink(rawSocket));
   }
 
-  private void establishProtocol(ConnectionSpecSelector connectionSpecSelector) throws IOException {
+  private void establishProtocol(ConnectionSpecSelector connectionSpecSelector, Call call,
+      EventListener eventListener) throws IOException {
     if (route.address().sslSocketFactory() == null) {
       protocol = Protocol.HTTP_1_1;
       socket = rawSocket;
       return;
     }
 
-    connectTls(connectionSpecSelector);
+    eventListener.secureConnectStart(call);
+    try {
+      connectTls(connectionSpecSelector);
+    } catch (IOException e) {
+      eventListener.secureConnectEnd(call, null, e);
+      throw e;
+    }
+    eventListener.secureConnectEnd(call, handshake, null);
 
     if (protocol == Protocol.HTTP_2) {
       socket.setSoTimeout(0); // HTTP/2 connection timeouts are set per-stream.
       http2Connection = new Http2Connection.Builder(true)
           .socket(socket, route.address().url().host(), source, sink)
           .listener(this)
+          .coalesceWrites(connectionPool.http2WriteCoalescing())
           .build();
       http2Connection.start();
     }
@@ -379,8 +415,12 @@ public final class RealConnection extends Http2Connection.Listener implements Co
    * {@code route} is the resolved route for a connection.
    */
   public boolean isEligible(Address address, Route route) {
+    assert (Thread.holdsLock(this));
+
     // If this connection is not accepting new streams, we're done.
-    if (allocations.size() >= allocationLimit || noNewStreams) return false;
+    if (allocations.size() >= allocationLimit || noNewStreams || healthCheckInProgress) {
+      return false;
+    }
 
     // If the non-host fields of the address don't overlap, we're done.
     if (!Internal.instance.equalsNonHost(this.route.address(), address)) return false;
@@ -408,15 +448,22 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
     // 3. This connection's server certificate's must cover the new host.
     if (route.address().hostnameVerifier() != OkHostnameVerifier.INSTANCE) return false;
+
+    // Hosts that passed checks 3 and 4 before still pass: the certificates don't change and the
+    // addresses share a certificate pinner.
+    String host = address.url().host();
+    if (coalescedHosts.contains(host)) return true;
+
     if (!supportsUrl(address.url())) return false;
 
     // 4. Certificate pinning must match the host.
     try {
-      address.certificatePinner().check(address.url().host(), handshake().peerCertificates());
+      address.certificatePinner().check(host, handshake().peerCertificates());
     } catch (SSLPeerUnverifiedException e) {
       return false;
     }
 
+    coalescedHosts.add(host);
     return true; // The caller's address can be carried by this connection.
   }
 
@@ -449,7 +496,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   public RealWebSocket.Streams newWebSocketStreams(final StreamAllocation streamAllocation) {
     return new RealWebSocket.Streams(true, source, sink) {
       @Override public void close() throws IOException {
-        streamAllocation.streamFinished(true, streamAllocation.codec());
+        streamAllocation.streamFinished(true, streamAllocation.codec(), null);
       }
     };
   }
@@ -499,6 +546,19 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     return true;
   }
 
+  /**
+   * Sends a ping to the peer of this HTTP/2 connection. Returns null if this is not an HTTP/2
+   * connection or if the ping couldn't be sent.
+   */
+  public Ping ping() {
+    if (http2Connection == null) return null;
+    try {
+      return http2Connection.ping();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
   /** Refuse incoming streams. */
   @Override public void onStream(Http2Stream stream) throws IOException {
     stream.close(ErrorCode.REFUSED_STREAM);
@@ -506,7 +566,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
   /** When settings are received, adjust the allocation limit. */
   @Override public void onSettings(Http2Connection connection) {
-    synchronized (connectionPool) {
+    synchronized (this) {
       allocationLimit = connection.maxConcurrentStreams();
     }
   }
@@ -26,6 +26,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
 import okhttp3.Address;
+import okhttp3.Call;
+import okhttp3.EventListener;
 import okhttp3.HttpUrl;
 import okhttp3.Route;
 import okhttp3.internal.Util;
@@ -39,6 +41,8 @@ import okhttp3.internal.Util;
 public final class RouteSelector {
   private final Address address;
   private final RouteDatabase routeDatabase;
+  private final Call call;
+  private final EventListener eventListener;
 
   /*
    最近尝试的route
@@ -63,9 +67,17 @@ public final class RouteSelector {
   State for negotiating failed routes */
   private final List<Route> postponedRoutes = new ArrayList<>();
 
-  public RouteSelector(Address address, RouteDatabase routeDatabase) {
+  /*
+  负责避开另一次尝试正在使用的route
+  A route that another attempt of the same call is using. It is tried last. */
+  private Route avoidedRoute;
+
+  public RouteSelector(Address address, RouteDatabase routeDatabase, Call call,
+      EventListener eventListener) {
     this.address = address;
     this.routeDatabase = routeDatabase;
+    this.call = call;
+    this.eventListener = eventListener;
 
     resetNextProxy(address.url(), address.proxy());
   }
@@ -95,7 +107,7 @@ public final class RouteSelector {
     lastInetSocketAddress = nextInetSocketAddress();
 
     Route route = new Route(address, lastProxy, lastInetSocketAddress);
-    if (routeDatabase.shouldPostpone(route)) {
+    if (routeDatabase.shouldPostpone(route) || route.equals(avoidedRoute)) {
       postponedRoutes.add(route);
       // 我们只会递归为了跳过之前失败的路线。他们将尝试最后一次。
       // We will only recurse in order to skip previously failed routes. They will be tried last.
@@ -105,6 +117,31 @@ public final class RouteSelector {
     return route;
   }
 
+  /**
+   * 返回当前proxy的所有直连route，用来查找可以合并的HTTP/2 connection
+   * Returns a route to each address that the last proxy resolved to, if that proxy is direct. Any
+   * of these can carry a coalesced HTTP/2 connection, not just the one {@link #next} returned.
+   */
+  public List<Route> coalescingRoutes() {
+    if (lastProxy == null || lastProxy.type() != Proxy.Type.DIRECT) {
+      return Collections.emptyList();
+    }
+    List<Route> result = new ArrayList<>(inetSocketAddresses.size());
+    for (int i = 0, size = inetSocketAddresses.size(); i < size; i++) {
+      result.add(new Route(address, lastProxy, inetSocketAddresses.get(i)));
+    }
+    return result;
+  }
+
+  /**
+   * 在其他route都尝试过之后再尝试{@code route}
+   * Postpones {@code route} until every other route has been attempted. Use this to send a hedged
+   * attempt somewhere other than the attempt it is racing.
+   */
+  public void avoid(Route route) {
+    this.avoidedRoute = route;
+  }
+
   /**
    * 客户端需要调用这个方法当他们遇到了一个失败的连接，这里连接是从这里选择的
    * Clients should invoke this method when they encounter a connectivity failure on a connection
@@ -193,7 +230,15 @@ public final class RouteSelector {
     } else {
       // 在IPv4/IPv6 混合的环境下，用最好的行为尝试每一个地址。
       // Try each address for best behavior in mixed IPv4/IPv6 environments.
-      List<InetAddress> addresses = address.dns().lookup(socketHost);
+      eventListener.dnsStart(call, socketHost);
+      List<InetAddress> addresses;
+      try {
+        addresses = address.dns().lookup(socketHost);
+      } catch (IOException | RuntimeException e) {
+        eventListener.dnsEnd(call, socketHost, null, e);
+        throw e;
+      }
+      eventListener.dnsEnd(call, socketHost, addresses, null);
       for (int i = 0, size = addresses.size(); i < size; i++) {
         InetAddress inetAddress = addresses.get(i);
         inetSocketAddresses.add(new InetSocketAddress(inetAddress, socketPort));
@@ -19,8 +19,12 @@ import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import okhttp3.Address;
+import okhttp3.Call;
 import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
 import okhttp3.OkHttpClient;
 import okhttp3.Route;
 import okhttp3.internal.Internal;
@@ -88,23 +92,36 @@ import static okhttp3.internal.Util.closeQuietly;
  * then canceling may break the entire connection.
  */
 public final class StreamAllocation {
+  /**
+   * How long a background health check vouches for an idle connection. Servers commonly close
+   * idle connections after 5 to 60 seconds, so an older check doesn't spare the call its own.
+   */
+  private static final long HEALTH_CHECK_FRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   public final Address address;
+  public final Call call;
+  public final EventListener eventListener;
   private Route route;
   private final ConnectionPool connectionPool;
   private final Object callStackTrace;
 
-  // State guarded by connectionPool.
+  // State guarded by this. Code that also locks this allocation's connection must lock this first.
   private final RouteSelector routeSelector;
   private int refusedStreamCount;
   private RealConnection connection;
   private boolean released;
   private boolean canceled;
+  private Runnable cancelListener;
   private HttpCodec codec;
+  private Route avoidedRoute;
 
-  public StreamAllocation(ConnectionPool connectionPool, Address address, Object callStackTrace) {
+  public StreamAllocation(ConnectionPool connectionPool, Address address, Call call,
+      EventListener eventListener, Object callStackTrace) {
     this.connectionPool = connectionPool;
     this.address = address;
-    this.routeSelector = new RouteSelector(address, routeDatabase());
+    this.call = call;
+    this.eventListener = eventListener;
+    this.routeSelector = new RouteSelector(address, routeDatabase(), call, eventListener);
     this.callStackTrace = callStackTrace;
   }
 
@@ -117,9 +134,10 @@ public final class StreamAllocation {
     try {
       RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
           writeTimeout, connectionRetryEnabled, doExtensiveHealthChecks);
+      eventListener.connectionAcquired(call, resultConnection);
       HttpCodec resultCodec = resultConnection.newCodec(client, this);
 
-      synchronized (connectionPool) {
+      synchronized (this) {
         codec = resultCodec;
         return resultCodec;
       }
@@ -128,6 +146,20 @@ public final class StreamAllocation {
     }
   }
 
+  /**
+   * 获取一个connection但不在上面创建stream，用来预热connection pool
+   * Acquires a healthy connection without opening a stream on it, connecting a new one if the pool
+   * has none that this allocation can use. This is used to warm the pool ahead of calls.
+   */
+  public RealConnection acquireConnection(OkHttpClient client) throws IOException {
+    try {
+      return findHealthyConnection(client.connectTimeoutMillis(), client.readTimeoutMillis(),
+          client.writeTimeoutMillis(), client.retryOnConnectionFailure(), true);
+    } catch (RouteException e) {
+      throw e.getLastConnectException();
+    }
+  }
+
   /**
    * 找到一个健康的connection然后返回它。
    * Finds a connection and returns it if it is healthy. If it is unhealthy the process is repeated
@@ -141,9 +173,13 @@ public final class StreamAllocation {
           connectionRetryEnabled);
 
       // 如果这是一个全新的connection，我们可以跳过健康检查
-      // If this is a brand new connection, we can skip the extensive health checks.
-      synchronized (connectionPool) {
-        if (candidate.successCount == 0) {
+      // If this is a brand new connection, we can skip the extensive health checks. So can a
+      // connection that the pool checked in the background since it became idle, if the check is
+      // recent enough that the server is unlikely to have closed it since.
+      synchronized (candidate) {
+        if (candidate.successCount == 0) return candidate;
+        if (candidate.healthyAtNanos > candidate.idleAtNanos
+            && System.nanoTime() - candidate.healthyAtNanos < HEALTH_CHECK_FRESH_NANOS) {
           return candidate;
         }
       }
@@ -168,7 +204,7 @@ public final class StreamAllocation {
   private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
       boolean connectionRetryEnabled) throws IOException {
     Route selectedRoute;
-    synchronized (connectionPool) {
+    synchronized (this) {
       if (released) throw new IllegalStateException("released");
       if (codec != null) throw new IllegalStateException("codec != null");
       if (canceled) throw new IOException("Canceled");
@@ -176,8 +212,10 @@ public final class StreamAllocation {
       // 使用使用早就分配过的connection
       // Attempt to use an already-allocated connection.
       RealConnection allocatedConnection = this.connection;
-      if (allocatedConnection != null && !allocatedConnection.noNewStreams) {
-        return allocatedConnection;
+      if (allocatedConnection != null) {
+        synchronized (allocatedConnection) {
+          if (!allocatedConnection.noNewStreams) return allocatedConnection;
+        }
       }
 
       // 试图从pool中获取一个connection
@@ -196,36 +234,55 @@ public final class StreamAllocation {
     }
 
     RealConnection result;
-    synchronized (connectionPool) {
+    synchronized (this) {
       if (canceled) throw new IOException("Canceled");
 
+      // The route selector only returns the avoided route once every other route has been
+      // attempted. Reuse pooled connections on it too rather than always connecting anew.
+      if (selectedRoute.equals(avoidedRoute)) avoidedRoute = null;
+
       // Now that we have an IP address, make another attempt at getting a connection from the pool.
       // This could match due to connection coalescing.
       Internal.instance.get(connectionPool, address, this, selectedRoute);
       if (connection != null) return connection;
 
+      // An HTTP/2 connection to another host can be coalesced if it shares any of this host's
+      // addresses, not just the one we'd connect to first.
+      List<Route> coalescingRoutes = routeSelector.coalescingRoutes();
+      for (int i = 0, size = coalescingRoutes.size(); i < size; i++) {
+        Route coalescingRoute = coalescingRoutes.get(i);
+        if (coalescingRoute.equals(selectedRoute)) continue;
+        Internal.instance.get(connectionPool, address, this, coalescingRoute);
+        if (connection != null) return connection;
+      }
+
       // Create a connection and assign it to this allocation immediately. This makes it possible
       // for an asynchronous cancel() to interrupt the handshake we're about to do.
       route = selectedRoute;
       refusedStreamCount = 0;
       result = new RealConnection(connectionPool, selectedRoute);
-      acquire(result);
+      synchronized (result) {
+        acquire(result);
+      }
     }
 
     // Do TCP + TLS handshakes. This is a blocking operation.
-    result.connect(connectTimeout, readTimeout, writeTimeout, connectionRetryEnabled);
+    result.connect(connectTimeout, readTimeout, writeTimeout, connectionRetryEnabled, call,
+        eventListener);
     routeDatabase().connected(result.route());
 
     Socket socket = null;
-    synchronized (connectionPool) {
-      // Pool the connection.
-      Internal.instance.put(connectionPool, result);
-
-      // If another multiplexed connection to the same address was created concurrently, then
-      // release this connection and acquire that one.
+    synchronized (this) {
       if (result.isMultiplexed()) {
+        // If another multiplexed connection to the same address was created concurrently, then
+        // release this connection and acquire that one. Otherwise this pools the connection.
         socket = Internal.instance.deduplicate(connectionPool, address, this);
         result = connection;
+      } else {
+        // Pool the connection.
+        synchronized (result) {
+          Internal.instance.put(connectionPool, result);
+        }
       }
     }
     closeQuietly(socket);
@@ -233,24 +290,29 @@ public final class StreamAllocation {
     return result;
   }
 
-  public void streamFinished(boolean noNewStreams, HttpCodec codec) {
+  /**
+   * Releases {@code codec}'s stream. {@code e} is null if the response body was read to its end,
+   * or why it wasn't: it failed, was truncated or was closed early.
+   */
+  public void streamFinished(boolean noNewStreams, HttpCodec codec, IOException e) {
     Socket socket;
-    synchronized (connectionPool) {
+    synchronized (this) {
       if (codec == null || codec != this.codec) {
         throw new IllegalStateException("expected " + this.codec + " but was " + codec);
       }
       if (!noNewStreams) {
-        connection.successCount++;
+        synchronized (connection) {
+          connection.successCount++;
+        }
       }
       socket = deallocate(noNewStreams, false, true);
     }
     closeQuietly(socket);
+    eventListener.responseBodyEnd(call, e);
   }
 
-  public HttpCodec codec() {
-    synchronized (connectionPool) {
-      return codec;
-    }
+  public synchronized HttpCodec codec() {
+    return codec;
   }
 
   private RouteDatabase routeDatabase() {
@@ -261,9 +323,32 @@ public final class StreamAllocation {
     return connection;
   }
 
+  /** Returns the route this allocation is connected or connecting to, or null if none is chosen. */
+  public synchronized Route route() {
+    return connection != null ? connection.route() : route;
+  }
+
+  /**
+   * Prefer connections and routes other than {@code route}. Pooled connections on that route are
+   * skipped and new connections use other routes first. Once every other route has been attempted
+   * this allocation falls back to {@code route}, reusing a pooled connection on it if there is one.
+   */
+  public void avoid(Route route) {
+    synchronized (this) {
+      avoidedRoute = route;
+    }
+    routeSelector.avoid(route);
+  }
+
+  /** Returns true if this allocation should not reuse {@code connection}. */
+  public boolean avoids(RealConnection connection) {
+    assert (Thread.holdsLock(this));
+    return avoidedRoute != null && avoidedRoute.equals(connection.route());
+  }
+
   public void release() {
     Socket socket;
-    synchronized (connectionPool) {
+    synchronized (this) {
       socket = deallocate(false, true, false);
     }
     closeQuietly(socket);
@@ -272,7 +357,7 @@ public final class StreamAllocation {
   /** Forbid new streams from being created on the connection that hosts this allocation. */
   public void noNewStreams() {
     Socket socket;
-    synchronized (connectionPool) {
+    synchronized (this) {
       socket = deallocate(true, false, false);
     }
     closeQuietly(socket);
@@ -280,13 +365,13 @@ public final class StreamAllocation {
 
   /**
    * Releases resources held by this allocation. If sufficient resources are allocated, the
-   * connection will be detached or closed. Callers must be synchronized on the connection pool.
+   * connection will be detached or closed. Callers must be synchronized on this allocation.
    *
    * <p>Returns a closeable that the caller should pass to {@link Util#closeQuietly} upon completion
-   * of the synchronized block. (We don't do I/O while synchronized on the connection pool.)
+   * of the synchronized block. (We don't do I/O while holding locks.)
    */
   private Socket deallocate(boolean noNewStreams, boolean released, boolean streamFinished) {
-    assert (Thread.holdsLock(connectionPool));
+    assert (Thread.holdsLock(this));
 
     if (streamFinished) {
       this.codec = null;
@@ -296,18 +381,20 @@ public final class StreamAllocation {
     }
     Socket socket = null;
     if (connection != null) {
-      if (noNewStreams) {
-        connection.noNewStreams = true;
-      }
-      if (this.codec == null && (this.released || connection.noNewStreams)) {
-        release(connection);
-        if (connection.allocations.isEmpty()) {
-          connection.idleAtNanos = System.nanoTime();
-          if (Internal.instance.connectionBecameIdle(connectionPool, connection)) {
-            socket = connection.socket();
+      synchronized (connection) {
+        if (noNewStreams) {
+          connection.noNewStreams = true;
+        }
+        if (this.codec == null && (this.released || connection.noNewStreams)) {
+          release(connection);
+          if (connection.allocations.isEmpty()) {
+            connection.idleAtNanos = System.nanoTime();
+            if (Internal.instance.connectionBecameIdle(connectionPool, connection)) {
+              socket = connection.socket();
+            }
           }
+          connection = null;
         }
-        connection = null;
       }
     }
     return socket;
@@ -316,23 +403,41 @@ public final class StreamAllocation {
   public void cancel() {
     HttpCodec codecToCancel;
     RealConnection connectionToCancel;
-    synchronized (connectionPool) {
+    Runnable listenerToRun;
+    synchronized (this) {
       canceled = true;
       codecToCancel = codec;
       connectionToCancel = connection;
+      listenerToRun = cancelListener;
     }
     if (codecToCancel != null) {
       codecToCancel.cancel();
     } else if (connectionToCancel != null) {
       connectionToCancel.cancel();
     }
+    if (listenerToRun != null) listenerToRun.run();
+  }
+
+  /**
+   * Sets {@code listener} to run when this allocation is canceled, or clears it if null. This lets
+   * a call that waits on something other than its own stream, such as another call's response,
+   * stop waiting when it is canceled. If this allocation is already canceled the listener runs
+   * immediately.
+   */
+  public void setCancelListener(Runnable listener) {
+    boolean canceled;
+    synchronized (this) {
+      this.cancelListener = listener;
+      canceled = this.canceled;
+    }
+    if (canceled && listener != null) listener.run();
   }
 
   public void streamFailed(IOException e) {
     Socket socket;
     boolean noNewStreams = false;
 
-    synchronized (connectionPool) {
+    synchronized (this) {
       if (e instanceof StreamResetException) {
         StreamResetException streamResetException = (StreamResetException) e;
         if (streamResetException.errorCode == ErrorCode.REFUSED_STREAM) {
@@ -349,7 +454,11 @@ public final class StreamAllocation {
         noNewStreams = true;
 
         // If this route hasn't completed a call, avoid it for new connections.
-        if (connection.successCount == 0) {
+        int successCount;
+        synchronized (connection) {
+          successCount = connection.successCount;
+        }
+        if (successCount == 0) {
           if (route != null && e != null) {
             routeSelector.connectFailed(route, e);
           }
@@ -364,10 +473,12 @@ public final class StreamAllocation {
 
   /**
    * Use this allocation to hold {@code connection}. Each call to this must be paired with a call to
-   * {@link #release} on the same connection.
+   * {@link #release} on the same connection. Callers must be synchronized on this allocation and
+   * then on {@code connection}.
    */
   public void acquire(RealConnection connection) {
-    assert (Thread.holdsLock(connectionPool));
+    assert (Thread.holdsLock(this));
+    assert (Thread.holdsLock(connection));
     if (this.connection != null) throw new IllegalStateException();
 
     this.connection = connection;
@@ -376,6 +487,7 @@ public final class StreamAllocation {
 
   /** Remove this allocation from the connection's list of allocations. */
   private void release(RealConnection connection) {
+    assert (Thread.holdsLock(connection));
     for (int i = 0, size = connection.allocations.size(); i < size; i++) {
       Reference<StreamAllocation> reference = connection.allocations.get(i);
       if (reference.get() == this) {
@@ -387,24 +499,39 @@ public final class StreamAllocation {
   }
 
   /**
-   * Release the connection held by this connection and acquire {@code newConnection} instead. It is
+   * Adds this allocation to {@code newConnection}, which will replace the held connection once
+   * {@link #releaseAndAcquire} releases it. Callers must be synchronized on this allocation and then
+   * on {@code newConnection}.
+   */
+  public void acquireShared(RealConnection newConnection) {
+    assert (Thread.holdsLock(this));
+    assert (Thread.holdsLock(newConnection));
+    if (codec != null || connection == null) throw new IllegalStateException();
+    newConnection.allocations.add(new StreamAllocationReference(this, callStackTrace));
+  }
+
+  /**
+   * Release the connection held by this connection and use {@code newConnection} instead. It is
    * only safe to call this if the held connection is newly connected but duplicated by {@code
    * newConnection}. Typically this occurs when concurrently connecting to an HTTP/2 webserver.
    *
+   * <p>Callers must first add this allocation to {@code newConnection} with {@link
+   * #acquireShared}. They must then release {@code newConnection}'s lock before calling this, so
+   * that no thread holds two connection locks. Callers must be synchronized on this allocation.
+   *
    * <p>Returns a closeable that the caller should pass to {@link Util#closeQuietly} upon completion
-   * of the synchronized block. (We don't do I/O while synchronized on the connection pool.)
+   * of the synchronized block. (We don't do I/O while holding locks.)
    */
   public Socket releaseAndAcquire(RealConnection newConnection) {
-    assert (Thread.holdsLock(connectionPool));
-    if (codec != null || connection.allocations.size() != 1) throw new IllegalStateException();
+    assert (Thread.holdsLock(this));
+    assert (!Thread.holdsLock(newConnection));
 
     // Release the old connection.
-    Reference<StreamAllocation> onlyAllocation = connection.allocations.get(0);
     Socket socket = deallocate(true, false, false);
+    if (connection != null) throw new IllegalStateException();
 
-    // Acquire the new connection.
+    // Use the new connection, which already holds this allocation.
     this.connection = newConnection;
-    newConnection.allocations.add(onlyAllocation);
 
     return socket;
   }
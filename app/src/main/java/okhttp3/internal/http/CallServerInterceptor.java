@@ -17,6 +17,8 @@ package okhttp3.internal.http;
 
 import java.io.IOException;
 import java.net.ProtocolException;
+import okhttp3.Call;
+import okhttp3.EventListener;
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -43,9 +45,18 @@ public final class CallServerInterceptor implements Interceptor {
     StreamAllocation streamAllocation = realChain.streamAllocation();
     RealConnection connection = (RealConnection) realChain.connection();
     Request request = realChain.request();
+    Call call = realChain.call();
+    EventListener eventListener = realChain.eventListener();
 
     long sentRequestMillis = System.currentTimeMillis();
-    httpCodec.writeRequestHeaders(request);
+    eventListener.requestHeadersStart(call);
+    try {
+      httpCodec.writeRequestHeaders(request);
+    } catch (IOException e) {
+      eventListener.requestHeadersEnd(call, e);
+      throw e;
+    }
+    eventListener.requestHeadersEnd(call, null);
 
     Response.Builder responseBuilder = null;
     if (HttpMethod.permitsRequestBody(request.method()) && request.body() != null) {
@@ -56,16 +67,24 @@ public final class CallServerInterceptor implements Interceptor {
       // we did get (such as a 4xx response) without ever transmitting the request body.
       if ("100-continue".equalsIgnoreCase(request.header("Expect"))) {
         httpCodec.flushRequest();
-        responseBuilder = httpCodec.readResponseHeaders(true);
+        responseBuilder = readResponseHeaders(httpCodec, true, call, eventListener);
       }
 
       if (responseBuilder == null) {
         //
         // Write the request body if the "Expect: 100-continue" expectation was met.
-        Sink requestBodyOut = httpCodec.createRequestBody(request, request.body().contentLength());
-        BufferedSink bufferedRequestBody = Okio.buffer(requestBodyOut);
-        request.body().writeTo(bufferedRequestBody);
-        bufferedRequestBody.close();
+        eventListener.requestBodyStart(call);
+        try {
+          long contentLength = request.body().contentLength();
+          Sink requestBodyOut = httpCodec.createRequestBody(request, contentLength);
+          BufferedSink bufferedRequestBody = Okio.buffer(requestBodyOut);
+          request.body().writeTo(bufferedRequestBody);
+          bufferedRequestBody.close();
+        } catch (IOException e) {
+          eventListener.requestBodyEnd(call, e);
+          throw e;
+        }
+        eventListener.requestBodyEnd(call, null);
       } else if (!connection.isMultiplexed()) {
         // If the "Expect: 100-continue" expectation wasn't met, prevent the HTTP/1 connection from
         // being reused. Otherwise we're still obligated to transmit the request body to leave the
@@ -77,7 +96,7 @@ public final class CallServerInterceptor implements Interceptor {
     httpCodec.finishRequest();
 
     if (responseBuilder == null) {
-      responseBuilder = httpCodec.readResponseHeaders(false);
+      responseBuilder = readResponseHeaders(httpCodec, false, call, eventListener);
     }
 
     Response response = responseBuilder
@@ -111,4 +130,18 @@ public final class CallServerInterceptor implements Interceptor {
 
     return response;
   }
+
+  private Response.Builder readResponseHeaders(HttpCodec httpCodec, boolean expectContinue,
+      Call call, EventListener eventListener) throws IOException {
+    eventListener.responseHeadersStart(call);
+    Response.Builder result;
+    try {
+      result = httpCodec.readResponseHeaders(expectContinue);
+    } catch (IOException e) {
+      eventListener.responseHeadersEnd(call, e);
+      throw e;
+    }
+    eventListener.responseHeadersEnd(call, null);
+    return result;
+  }
 }
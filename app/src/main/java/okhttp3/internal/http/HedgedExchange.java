@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.Route;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.connection.StreamAllocation;
+import okio.AsyncTimeout;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * 一次可能被对冲的网络请求：主请求在调用线程上执行，如果超过延迟仍没有响应头，就在另一条路线上发送第二次请求
+ * One network attempt that may be hedged. The primary attempt runs on the calling thread. If its
+ * response headers haven't arrived when the {@linkplain HedgingPolicy#delayNanos delay} elapses,
+ * a second attempt is started on the dispatcher's executor with its own {@link StreamAllocation}
+ * that avoids the primary's route. The first attempt to return response headers wins and the other
+ * is canceled.
+ *
+ * <p>The {@link RetryAndFollowUpInterceptor} creates the exchange for each attempt, but the
+ * attempts branch in the {@linkplain okhttp3.internal.connection.ConnectInterceptor connect
+ * interceptor}: the bridge, cache and coalescing interceptors see the call once, and only the
+ * network request they produce is sent twice. Network interceptors see both attempts.
+ *
+ * <p>The second attempt is not counted against the dispatcher's limits: it exists only while the
+ * primary is slow and ends as soon as either attempt answers.
+ */
+public final class HedgedExchange extends AsyncTimeout {
+  private final OkHttpClient client;
+  private final HedgingPolicy policy;
+  private final StreamAllocation primary;
+  private final Object callStackTrace;
+
+  // Guarded by this.
+  private RealInterceptorChain chain;
+  private Request request;
+  private boolean doExtensiveHealthChecks;
+  private boolean primaryDone;
+  private boolean hedgeStarted;
+  private boolean hedgeDone;
+  private long primaryStartNanos;
+  private boolean canceled;
+  private StreamAllocation hedge;
+  private Response winner;
+  private StreamAllocation winnerAllocation;
+
+  HedgedExchange(OkHttpClient client, HedgingPolicy policy, Request request,
+      StreamAllocation primary, Object callStackTrace) {
+    this.client = client;
+    this.policy = policy;
+    this.primary = primary;
+    this.callStackTrace = callStackTrace;
+    timeout(policy.delayNanos(request.url().host()), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns true if this exchange races attempts for {@code streamAllocation}. */
+  public boolean hedges(StreamAllocation streamAllocation) {
+    return streamAllocation == primary;
+  }
+
+  /**
+   * Connects and proceeds from {@code chain}, the chain following the connect interceptor, and
+   * returns the response of whichever attempt answered first. If both attempts fail this throws
+   * the primary attempt's failure, which leaves recovery to the caller as if no hedge was sent.
+   */
+  public Response proceed(RealInterceptorChain chain, Request request,
+      boolean doExtensiveHealthChecks) throws IOException {
+    synchronized (this) {
+      if (this.chain != null) throw new IllegalStateException("already proceeded");
+      // The primary attempt is using this chain. The hedge proceeds from a copy of it.
+      this.chain = chain.copy();
+      this.request = request;
+      this.doExtensiveHealthChecks = doExtensiveHealthChecks;
+      this.primaryStartNanos = System.nanoTime();
+    }
+
+    Response response = null;
+    IOException ioFailure = null;
+    RuntimeException runtimeFailure = null;
+
+    enter();
+    try {
+      HttpCodec httpCodec = primary.newStream(client, doExtensiveHealthChecks);
+      response = chain.proceed(request, primary, httpCodec, primary.connection());
+    } catch (IOException e) {
+      ioFailure = e;
+    } catch (RuntimeException e) {
+      runtimeFailure = e;
+    } finally {
+      exit();
+    }
+
+    StreamAllocation hedgeToCancel = null;
+    boolean interrupted = false;
+    synchronized (this) {
+      primaryDone = true;
+      if (response != null && winner == null) {
+        winner = response;
+        winnerAllocation = primary;
+        hedgeToCancel = hedge;
+        policy.headersReceived(request.url().host(), System.nanoTime() - primaryStartNanos);
+      }
+
+      // The primary failed: give an in-flight hedge the chance to answer.
+      while (winner == null && hedgeStarted && !hedgeDone) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          canceled = true;
+          hedgeToCancel = hedge;
+          interrupted = true;
+          break;
+        }
+      }
+    }
+
+    if (hedgeToCancel != null) hedgeToCancel.cancel();
+
+    if (interrupted) throw new InterruptedIOException();
+
+    if (winnerAllocation == primary) return response;
+
+    if (winnerAllocation != null) {
+      // The hedge answered first. Release everything the primary attempt holds.
+      if (response != null) {
+        closeQuietly(response);
+      } else {
+        primary.streamFailed(null);
+      }
+      primary.release();
+      return winner;
+    }
+
+    if (ioFailure != null) throw ioFailure;
+    throw runtimeFailure;
+  }
+
+  /** Returns the allocation that carries the winning attempt. */
+  synchronized StreamAllocation streamAllocation() {
+    return winnerAllocation != null ? winnerAllocation : primary;
+  }
+
+  void cancel() {
+    StreamAllocation hedgeToCancel;
+    synchronized (this) {
+      canceled = true;
+      hedgeToCancel = hedge;
+    }
+    if (hedgeToCancel != null) hedgeToCancel.cancel();
+  }
+
+  @Override protected void timedOut() {
+    String redactedUrl;
+    synchronized (this) {
+      if (primaryDone || canceled) return;
+      hedgeStarted = true;
+      redactedUrl = request.url().redact();
+    }
+    try {
+      client.dispatcher().executorService().execute(new NamedRunnable(
+          "OkHttp %s hedge", redactedUrl) {
+        @Override protected void execute() {
+          hedge();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        hedgeDone = true;
+        notifyAll();
+      }
+    }
+  }
+
+  private void hedge() {
+    StreamAllocation allocation;
+    RealInterceptorChain chain;
+    Request request;
+    boolean doExtensiveHealthChecks;
+    synchronized (this) {
+      if (winner != null || canceled) {
+        hedgeDone = true;
+        notifyAll();
+        return;
+      }
+      allocation = new StreamAllocation(client.connectionPool(), primary.address, primary.call,
+          primary.eventListener, callStackTrace);
+      hedge = allocation;
+      chain = this.chain;
+      request = this.request;
+      doExtensiveHealthChecks = this.doExtensiveHealthChecks;
+    }
+    policy.hedged();
+
+    Route primaryRoute = primary.route();
+    if (primaryRoute != null) allocation.avoid(primaryRoute);
+
+    long startNanos = System.nanoTime();
+    Response response = null;
+    try {
+      HttpCodec httpCodec = allocation.newStream(client, doExtensiveHealthChecks);
+      response = chain.proceed(request, allocation, httpCodec, allocation.connection());
+    } catch (IOException | RuntimeException e) {
+      allocation.streamFailed(null);
+      allocation.release();
+    }
+
+    boolean won = false;
+    synchronized (this) {
+      hedgeDone = true;
+      if (response != null && winner == null && !canceled) {
+        winner = response;
+        winnerAllocation = allocation;
+        won = true;
+        long now = System.nanoTime();
+        policy.headersReceived(request.url().host(), now - startNanos);
+        // The primary is slower than this; record that too, or slow primaries go unseen.
+        policy.headersNotReceived(request.url().host(), now - primaryStartNanos);
+      }
+      notifyAll();
+    }
+
+    if (won) {
+      policy.hedgeWon();
+      primary.cancel();
+    } else if (response != null) {
+      closeQuietly(response);
+      allocation.release();
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Request;
+
+/**
+ * 决定什么时候为一个幂等的请求发送第二次尝试
+ * Decides when a second attempt is sent for an idempotent request whose response headers are slow
+ * to arrive. The delay for each host is the greater of a configured floor and an estimate of the
+ * 95th percentile time to response headers for that host.
+ *
+ * <p>The percentile is tracked with a streaming estimate that takes a fixed step up for each
+ * slower sample and a step 19 times smaller down for each faster one, so it settles where 5% of
+ * samples are slower. Each host costs a single {@link AtomicLong}.
+ */
+public final class HedgingPolicy {
+  /** The smallest step the estimate moves by, so that it can climb away from a tiny first sample. */
+  private static final long MIN_STEP_NANOS = 100_000L;
+
+  private final long minDelayNanos;
+  private final ConcurrentMap<String, AtomicLong> headersNanosP95 = new ConcurrentHashMap<>();
+  private final AtomicLong hedgedCount = new AtomicLong();
+  private final AtomicLong hedgeWonCount = new AtomicLong();
+
+  public HedgingPolicy(long minDelayNanos) {
+    if (minDelayNanos <= 0) throw new IllegalArgumentException("minDelayNanos <= 0");
+    this.minDelayNanos = minDelayNanos;
+  }
+
+  /** Only requests that are safe to send twice are hedged. */
+  public boolean canHedge(Request request) {
+    return (request.method().equals("GET") || request.method().equals("HEAD"))
+        && request.body() == null;
+  }
+
+  /** Returns how long to wait for response headers from {@code host} before hedging. */
+  public long delayNanos(String host) {
+    AtomicLong estimate = headersNanosP95.get(host);
+    return estimate != null ? Math.max(minDelayNanos, estimate.get()) : minDelayNanos;
+  }
+
+  /** Records that {@code host} returned response headers {@code nanos} after the attempt began. */
+  public void headersReceived(String host, long nanos) {
+    AtomicLong estimate = headersNanosP95.get(host);
+    if (estimate == null) {
+      estimate = headersNanosP95.putIfAbsent(host, new AtomicLong(nanos));
+      if (estimate == null) return;
+    }
+    while (true) {
+      long current = estimate.get();
+      long step = Math.max(current >> 5, MIN_STEP_NANOS);
+      long next = nanos > current
+          ? current + step - step / 20
+          : Math.max(0L, current - step / 20);
+      if (estimate.compareAndSet(current, next)) return;
+    }
+  }
+
+  /**
+   * Records that {@code host} still hadn't returned response headers {@code nanos} after an attempt
+   * began, when that attempt is abandoned because a hedge answered first. The attempt's true time
+   * is unknown but at least {@code nanos}; without this the slowest attempts would never be
+   * recorded, and the estimate would fall until almost every request was hedged.
+   */
+  public void headersNotReceived(String host, long nanos) {
+    AtomicLong estimate = headersNanosP95.get(host);
+    if (estimate == null) {
+      estimate = headersNanosP95.putIfAbsent(host, new AtomicLong(nanos));
+      if (estimate == null) return;
+    }
+    while (true) {
+      long current = estimate.get();
+      if (nanos <= current) return; // A lower bound under the estimate says nothing.
+      long step = Math.max(current >> 5, MIN_STEP_NANOS);
+      if (estimate.compareAndSet(current, current + step - step / 20)) return;
+    }
+  }
+
+  void hedged() {
+    hedgedCount.incrementAndGet();
+  }
+
+  void hedgeWon() {
+    hedgeWonCount.incrementAndGet();
+  }
+
+  public long minDelayNanos() {
+    return minDelayNanos;
+  }
+
+  /** Returns the number of second attempts that have been sent. */
+  public long hedgedCount() {
+    return hedgedCount.get();
+  }
+
+  /** Returns the number of second attempts that answered before the first. */
+  public long hedgeWonCount() {
+    return hedgeWonCount.get();
+  }
+}
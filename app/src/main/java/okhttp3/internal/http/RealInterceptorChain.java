@@ -17,7 +17,9 @@ package okhttp3.internal.http;
 
 import java.io.IOException;
 import java.util.List;
+import okhttp3.Call;
 import okhttp3.Connection;
+import okhttp3.EventListener;
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -29,24 +31,50 @@ import okhttp3.internal.connection.StreamAllocation;
  * 和最后的网络调用者
  * A concrete interceptor chain that carries the entire interceptor chain: all application
  * interceptors, the OkHttp core, all network interceptors, and finally the network caller.
+ *
+ * 一个调用的所有拦截器共享同一个chain
+ * <p>A call uses one chain for every interceptor. Each call to {@link #proceed} moves the chain to
+ * the next interceptor's position and moves it back once that interceptor returns, so that
+ * interceptors see their own position before and after proceeding. Chains are not thread safe:
+ * use {@link #copy} to proceed concurrently.
  */
 public final class RealInterceptorChain implements Interceptor.Chain {
   private final List<Interceptor> interceptors;
-  private final StreamAllocation streamAllocation;
-  private final HttpCodec httpCodec;
-  private final RealConnection connection;
-  private final int index;
-  private final Request request;
+  private int index;
+  private final Call call;
+  private final EventListener eventListener;
+  private StreamAllocation streamAllocation;
+  private HttpCodec httpCodec;
+  private RealConnection connection;
+  private Request request;
   private int calls;
 
   public RealInterceptorChain(List<Interceptor> interceptors, StreamAllocation streamAllocation,
-      HttpCodec httpCodec, RealConnection connection, int index, Request request) {
+      HttpCodec httpCodec, RealConnection connection, int index, Request request, Call call,
+      EventListener eventListener) {
     this.interceptors = interceptors;
     this.connection = connection;
     this.streamAllocation = streamAllocation;
     this.httpCodec = httpCodec;
     this.index = index;
     this.request = request;
+    this.call = call;
+    this.eventListener = eventListener;
+  }
+
+  /** Returns a chain in the same position as this one that shares none of its state. */
+  public RealInterceptorChain copy() {
+    return new RealInterceptorChain(
+        interceptors, streamAllocation, httpCodec, connection, index, request, call,
+        eventListener);
+  }
+
+  public Call call() {
+    return call;
+  }
+
+  public EventListener eventListener() {
+    return eventListener;
   }
 
   @Override public Connection connection() {
@@ -90,15 +118,28 @@ public final class RealInterceptorChain implements Interceptor.Chain {
     }
 
     // 调用在拦截器链中的下一个拦截器
-    // Call the next interceptor in the chain.
-    RealInterceptorChain next = new RealInterceptorChain(
-        interceptors, streamAllocation, httpCodec, connection, index + 1, request);
+    // Call the next interceptor in the chain, moving this chain to its position until it returns.
     Interceptor interceptor = interceptors.get(index);
-    Response response = interceptor.intercept(next);
+    int index = this.index;
+    StreamAllocation previousStreamAllocation = this.streamAllocation;
+    HttpCodec previousHttpCodec = this.httpCodec;
+    RealConnection previousConnection = this.connection;
+    Request previousRequest = this.request;
+    int calls = this.calls;
+    moveTo(index + 1, streamAllocation, httpCodec, connection, request, 0);
+    Response response;
+    int nextCalls;
+    try {
+      response = interceptor.intercept(this);
+    } finally {
+      nextCalls = this.calls;
+      moveTo(index, previousStreamAllocation, previousHttpCodec, previousConnection,
+          previousRequest, calls);
+    }
 
     // 确认下一个拦截器调用了chain.proceed()
     // Confirm that the next interceptor made its required call to chain.proceed().
-    if (httpCodec != null && index + 1 < interceptors.size() && next.calls != 1) {
+    if (httpCodec != null && index + 1 < interceptors.size() && nextCalls != 1) {
       throw new IllegalStateException("network interceptor " + interceptor
           + " must call proceed() exactly once");
     }
@@ -111,4 +152,14 @@ public final class RealInterceptorChain implements Interceptor.Chain {
 
     return response;
   }
+
+  private void moveTo(int index, StreamAllocation streamAllocation, HttpCodec httpCodec,
+      RealConnection connection, Request request, int calls) {
+    this.index = index;
+    this.streamAllocation = streamAllocation;
+    this.httpCodec = httpCodec;
+    this.connection = connection;
+    this.request = request;
+    this.calls = calls;
+  }
 }
@@ -27,8 +27,10 @@ import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSocketFactory;
 import okhttp3.Address;
+import okhttp3.Call;
 import okhttp3.CertificatePinner;
 import okhttp3.Connection;
+import okhttp3.EventListener;
 import okhttp3.HttpUrl;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
@@ -36,6 +38,7 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.Route;
+import okhttp3.internal.Internal;
 import okhttp3.internal.connection.RouteException;
 import okhttp3.internal.connection.StreamAllocation;
 import okhttp3.internal.http2.ConnectionShutdownException;
@@ -68,6 +71,7 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
   private final boolean forWebSocket;
   private StreamAllocation streamAllocation;
   private Object callStackTrace;
+  private volatile HedgedExchange hedgedExchange;
   private volatile boolean canceled;
 
   public RetryAndFollowUpInterceptor(OkHttpClient client, boolean forWebSocket) {
@@ -88,6 +92,8 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     canceled = true;
     StreamAllocation streamAllocation = this.streamAllocation;
     if (streamAllocation != null) streamAllocation.cancel();
+    HedgedExchange hedgedExchange = this.hedgedExchange;
+    if (hedgedExchange != null) hedgedExchange.cancel();
   }
 
   public boolean isCanceled() {
@@ -104,9 +110,12 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
 
   @Override public Response intercept(Chain chain) throws IOException {
     Request request = chain.request();
+    RealInterceptorChain realChain = (RealInterceptorChain) chain;
+    Call call = realChain.call();
+    EventListener eventListener = realChain.eventListener();
 
-    streamAllocation = new StreamAllocation(
-        client.connectionPool(), createAddress(request.url()), callStackTrace);
+    streamAllocation = new StreamAllocation(client.connectionPool(),
+        createAddress(client, request.url()), call, eventListener, callStackTrace);
 
     int followUpCount = 0;
     Response priorResponse = null;
@@ -119,7 +128,7 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
       Response response = null;
       boolean releaseConnection = true;
       try {
-        response = ((RealInterceptorChain) chain).proceed(request, streamAllocation, null, null);
+        response = proceed(realChain, request);
         releaseConnection = false;
       } catch (RouteException e) {
         // The attempt to connect via a route failed. The request will not have been sent.
@@ -174,8 +183,8 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
 
       if (!sameConnection(response, followUp.url())) {
         streamAllocation.release();
-        streamAllocation = new StreamAllocation(
-            client.connectionPool(), createAddress(followUp.url()), callStackTrace);
+        streamAllocation = new StreamAllocation(client.connectionPool(),
+            createAddress(client, followUp.url()), call, eventListener, callStackTrace);
       } else if (streamAllocation.codec() != null) {
         throw new IllegalStateException("Closing the body of " + response
             + " didn't close its backing stream. Bad interceptor?");
@@ -186,7 +195,36 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     }
   }
 
-  private Address createAddress(HttpUrl url) {
+  /** Returns the exchange that may hedge the attempt in flight, or null if it isn't hedged. */
+  public HedgedExchange hedgedExchange() {
+    return hedgedExchange;
+  }
+
+  /**
+   * Sends one attempt of {@code request}. If hedging is enabled and the request is idempotent, a
+   * second attempt may race this one once it reaches the network; the allocation of the winner
+   * becomes this call's allocation.
+   */
+  private Response proceed(RealInterceptorChain chain, Request request) throws IOException {
+    HedgingPolicy hedgingPolicy = Internal.instance.hedgingPolicy(client);
+    if (hedgingPolicy == null || forWebSocket || !hedgingPolicy.canHedge(request)) {
+      return chain.proceed(request, streamAllocation, null, null);
+    }
+
+    HedgedExchange exchange = new HedgedExchange(
+        client, hedgingPolicy, request, streamAllocation, callStackTrace);
+    hedgedExchange = exchange;
+    if (canceled) exchange.cancel();
+    try {
+      return chain.proceed(request, streamAllocation, null, null);
+    } finally {
+      hedgedExchange = null;
+      streamAllocation = exchange.streamAllocation();
+    }
+  }
+
+  /** Returns the address that {@code client} uses to connect to {@code url}'s host. */
+  public static Address createAddress(OkHttpClient client, HttpUrl url) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
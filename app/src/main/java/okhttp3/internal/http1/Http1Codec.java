@@ -129,6 +129,9 @@ public final class Http1Codec implements HttpCodec {
   }
 
   @Override public ResponseBody openResponseBody(Response response) throws IOException {
+    if (streamAllocation != null) {
+      streamAllocation.eventListener.responseBodyStart(streamAllocation.call);
+    }
     Source source = getTransferStream(response);
     return new RealResponseBody(response.headers(), Okio.buffer(source));
   }
@@ -350,9 +353,9 @@ public final class Http1Codec implements HttpCodec {
 
     /**
      * Closes the cache entry and makes the socket available for reuse. This should be invoked when
-     * the end of the body has been reached.
+     * the end of the body has been reached, or with {@code e} when it won't be.
      */
-    protected final void endOfInput(boolean reuseConnection) throws IOException {
+    protected final void endOfInput(boolean reuseConnection, IOException e) throws IOException {
       if (state == STATE_CLOSED) return;
       if (state != STATE_READING_RESPONSE_BODY) throw new IllegalStateException("state: " + state);
 
@@ -360,7 +363,7 @@ public final class Http1Codec implements HttpCodec {
 
       state = STATE_CLOSED;
       if (streamAllocation != null) {
-        streamAllocation.streamFinished(!reuseConnection, Http1Codec.this);
+        streamAllocation.streamFinished(!reuseConnection, Http1Codec.this, e);
       }
     }
   }
@@ -372,7 +375,7 @@ public final class Http1Codec implements HttpCodec {
     public FixedLengthSource(long length) throws IOException {
       bytesRemaining = length;
       if (bytesRemaining == 0) {
-        endOfInput(true);
+        endOfInput(true, null);
       }
     }
 
@@ -383,13 +386,15 @@ public final class Http1Codec implements HttpCodec {
 
       long read = source.read(sink, Math.min(bytesRemaining, byteCount));
       if (read == -1) {
-        endOfInput(false); // The server didn't supply the promised content length.
-        throw new ProtocolException("unexpected end of stream");
+        // The server didn't supply the promised content length.
+        ProtocolException e = new ProtocolException("unexpected end of stream");
+        endOfInput(false, e);
+        throw e;
       }
 
       bytesRemaining -= read;
       if (bytesRemaining == 0) {
-        endOfInput(true);
+        endOfInput(true, null);
       }
       return read;
     }
@@ -398,7 +403,7 @@ public final class Http1Codec implements HttpCodec {
       if (closed) return;
 
       if (bytesRemaining != 0 && !Util.discard(this, DISCARD_STREAM_TIMEOUT_MILLIS, MILLISECONDS)) {
-        endOfInput(false);
+        endOfInput(false, new IOException("closed before the end of the body"));
       }
 
       closed = true;
@@ -428,8 +433,10 @@ public final class Http1Codec implements HttpCodec {
 
       long read = source.read(sink, Math.min(byteCount, bytesRemainingInChunk));
       if (read == -1) {
-        endOfInput(false); // The server didn't supply the promised chunk length.
-        throw new ProtocolException("unexpected end of stream");
+        // The server didn't supply the promised chunk length.
+        ProtocolException e = new ProtocolException("unexpected end of stream");
+        endOfInput(false, e);
+        throw e;
       }
       bytesRemainingInChunk -= read;
       return read;
@@ -453,14 +460,14 @@ public final class Http1Codec implements HttpCodec {
       if (bytesRemainingInChunk == 0L) {
         hasMoreChunks = false;
         HttpHeaders.receiveHeaders(client.cookieJar(), url, readHeaders());
-        endOfInput(true);
+        endOfInput(true, null);
       }
     }
 
     @Override public void close() throws IOException {
       if (closed) return;
       if (hasMoreChunks && !Util.discard(this, DISCARD_STREAM_TIMEOUT_MILLIS, MILLISECONDS)) {
-        endOfInput(false);
+        endOfInput(false, new IOException("closed before the end of the body"));
       }
       closed = true;
     }
@@ -482,7 +489,7 @@ public final class Http1Codec implements HttpCodec {
       long read = source.read(sink, byteCount);
       if (read == -1) {
         inputExhausted = true;
-        endOfInput(true);
+        endOfInput(true, null);
         return -1;
       }
       return read;
@@ -491,7 +498,7 @@ public final class Http1Codec implements HttpCodec {
     @Override public void close() throws IOException {
       if (closed) return;
       if (!inputExhausted) {
-        endOfInput(false);
+        endOfInput(false, new IOException("closed before the end of the body"));
       }
       closed = true;
     }
@@ -127,6 +127,12 @@ final class Hpack {
     int headerCount = 0;
     int dynamicTableByteCount = 0;
 
+    /**
+     * Holds each Huffman-decoded string until it is copied out. Longer strings are decoded into an
+     * array of their own, so one large header doesn't grow this for the life of the connection.
+     */
+    private final byte[] huffmanBuffer = new byte[256];
+
     Reader(int headerTableSizeSetting, Source source) {
       this(headerTableSizeSetting, headerTableSizeSetting, source);
     }
@@ -337,9 +343,20 @@ final class Hpack {
       int firstByte = readByte();
       boolean huffmanDecode = (firstByte & 0x80) == 0x80; // 1NNNNNNN
       int length = readInt(firstByte, PREFIX_7_BITS);
+      if (length < 0) throw new IOException("Invalid string length " + length);
 
       if (huffmanDecode) {
-        return ByteString.of(Huffman.get().decode(source.readByteArray(length)));
+        // The length is the peer's claim. Buffer that many bytes before allocating for them.
+        source.require(length);
+        long maxDecodedLength = length * 8L / 5;
+        if (maxDecodedLength > Integer.MAX_VALUE) {
+          throw new IOException("String too long " + length);
+        }
+        byte[] sink = maxDecodedLength <= huffmanBuffer.length
+            ? huffmanBuffer
+            : new byte[(int) maxDecodedLength];
+        int decodedLength = Huffman.get().decode(source, length, sink);
+        return ByteString.of(sink, 0, decodedLength);
       } else {
         return source.readByteString(length);
       }
@@ -27,6 +27,9 @@ public final class Http2 {
   /** The initial max frame size, applied independently writing to, or reading from the peer. */
   static final int INITIAL_MAX_FRAME_SIZE = 0x4000; // 16384
 
+  /** The weight of a stream that doesn't carry priority information. */
+  static final int DEFAULT_WEIGHT = 16;
+
   static final byte TYPE_DATA = 0x0;
   static final byte TYPE_HEADERS = 0x1;
   static final byte TYPE_PRIORITY = 0x2;
@@ -23,6 +23,7 @@ import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 import okhttp3.Headers;
 import okhttp3.OkHttpClient;
+import okhttp3.Priority;
 import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -34,6 +35,7 @@ import okhttp3.internal.http.HttpCodec;
 import okhttp3.internal.http.RealResponseBody;
 import okhttp3.internal.http.RequestLine;
 import okhttp3.internal.http.StatusLine;
+import okio.Buffer;
 import okio.ByteString;
 import okio.ForwardingSource;
 import okio.Okio;
@@ -103,7 +105,7 @@ public final class Http2Codec implements HttpCodec {
 
     boolean hasRequestBody = request.body() != null;
     List<Header> requestHeaders = http2HeadersList(request);
-    stream = connection.newStream(requestHeaders, hasRequestBody);
+    stream = connection.newStream(requestHeaders, hasRequestBody, weight(request.priority()));
     stream.readTimeout().timeout(client.readTimeoutMillis(), TimeUnit.MILLISECONDS);
     stream.writeTimeout().timeout(client.writeTimeoutMillis(), TimeUnit.MILLISECONDS);
   }
@@ -125,6 +127,21 @@ public final class Http2Codec implements HttpCodec {
     return responseBuilder;
   }
 
+  /**
+   * Returns the HTTP/2 weight for calls of {@code priority}. Every stream depends on the root, so
+   * weights alone decide how the peer and this connection share bandwidth between calls.
+   */
+  static int weight(Priority priority) {
+    switch (priority) {
+      case LOW:
+        return 8;
+      case HIGH:
+        return 128;
+      default:
+        return Http2.DEFAULT_WEIGHT;
+    }
+  }
+
   public static List<Header> http2HeadersList(Request request) {
     Headers headers = request.headers();
     List<Header> result = new ArrayList<>(headers.size() + 4);
@@ -181,6 +198,7 @@ public final class Http2Codec implements HttpCodec {
   }
 
   @Override public ResponseBody openResponseBody(Response response) throws IOException {
+    streamAllocation.eventListener.responseBodyStart(streamAllocation.call);
     Source source = new StreamFinishingSource(stream.getSource());
     return new RealResponseBody(response.headers(), Okio.buffer(source));
   }
@@ -190,12 +208,26 @@ public final class Http2Codec implements HttpCodec {
   }
 
   class StreamFinishingSource extends ForwardingSource {
+    /** Null once the body is exhausted; otherwise why the body is incomplete if it closes now. */
+    IOException failure = new IOException("closed before the end of the body");
+
     public StreamFinishingSource(Source delegate) {
       super(delegate);
     }
 
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      try {
+        long read = super.read(sink, byteCount);
+        if (read == -1L) failure = null;
+        return read;
+      } catch (IOException e) {
+        failure = e;
+        throw e;
+      }
+    }
+
     @Override public void close() throws IOException {
-      streamAllocation.streamFinished(false, Http2Codec.this);
+      streamAllocation.streamFinished(false, Http2Codec.this, failure);
       super.close();
     }
   }
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -106,6 +107,12 @@ public final class Http2Connection implements Closeable {
   // Visible for testing
   long bytesLeftInWriteWindow;
 
+  /**
+   * Streams waiting in {@link #writeData} for the connection's write window. Window updates are
+   * shared among them by weight so that a bulk upload can't take every update from a small one.
+   */
+  private final List<Http2Stream> blockedWriters = new ArrayList<>();
+
   /** Settings we communicate to the peer. */
   Settings okHttpSettings = new Settings();
 
@@ -119,6 +126,9 @@ public final class Http2Connection implements Closeable {
   final Socket socket;
   final Http2Writer writer;
 
+  /** True if frames are written to the socket by a dedicated thread rather than by each caller. */
+  final boolean coalesceWrites;
+
   // Visible for testing
   final ReaderRunnable readerRunnable;
 
@@ -152,7 +162,8 @@ public final class Http2Connection implements Closeable {
     peerSettings.set(Settings.MAX_FRAME_SIZE, Http2.INITIAL_MAX_FRAME_SIZE);
     bytesLeftInWriteWindow = peerSettings.getInitialWindowSize();
     socket = builder.socket;
-    writer = new Http2Writer(builder.sink, client);
+    coalesceWrites = builder.coalesceWrites;
+    writer = new Http2Writer(builder.sink, client, coalesceWrites);
 
     readerRunnable = new ReaderRunnable(new Http2Reader(builder.source, client));
   }
@@ -175,6 +186,7 @@ public final class Http2Connection implements Closeable {
 
   synchronized Http2Stream removeStream(int streamId) {
     Http2Stream stream = streams.remove(streamId);
+    if (stream != null) returnWindowGrant(stream);
     notifyAll(); // The removed stream may be blocked on a connection-wide window update.
     return stream;
   }
@@ -193,7 +205,7 @@ public final class Http2Connection implements Closeable {
   public Http2Stream pushStream(int associatedStreamId, List<Header> requestHeaders, boolean out)
       throws IOException {
     if (client) throw new IllegalStateException("Client cannot push requests.");
-    return newStream(associatedStreamId, requestHeaders, out);
+    return newStream(associatedStreamId, requestHeaders, out, Http2.DEFAULT_WEIGHT);
   }
 
   /**
@@ -202,11 +214,22 @@ public final class Http2Connection implements Closeable {
    * Corresponds to {@code FLAG_FIN}.
    */
   public Http2Stream newStream(List<Header> requestHeaders, boolean out) throws IOException {
-    return newStream(0, requestHeaders, out);
+    return newStream(0, requestHeaders, out, Http2.DEFAULT_WEIGHT);
+  }
+
+  /**
+   * Returns a new locally-initiated stream with {@code weight}, between 1 and 256. The weight is
+   * sent to the peer and also orders this stream's writes against other streams on this connection
+   * when they are waiting for the connection's write window.
+   */
+  public Http2Stream newStream(List<Header> requestHeaders, boolean out, int weight)
+      throws IOException {
+    if (weight < 1 || weight > 256) throw new IllegalArgumentException("weight: " + weight);
+    return newStream(0, requestHeaders, out, weight);
   }
 
-  private Http2Stream newStream(
-      int associatedStreamId, List<Header> requestHeaders, boolean out) throws IOException {
+  private Http2Stream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
+      int weight) throws IOException {
     boolean outFinished = !out;
     boolean inFinished = false;
     boolean flushHeaders;
@@ -221,13 +244,14 @@ public final class Http2Connection implements Closeable {
         streamId = nextStreamId;
         nextStreamId += 2;
         stream = new Http2Stream(streamId, this, outFinished, inFinished, requestHeaders);
+        stream.weight = weight;
         flushHeaders = !out || bytesLeftInWriteWindow == 0L || stream.bytesLeftInWriteWindow == 0L;
         if (stream.isOpen()) {
           streams.put(streamId, stream);
         }
       }
       if (associatedStreamId == 0) {
-        writer.synStream(outFinished, streamId, associatedStreamId, requestHeaders);
+        writer.synStream(outFinished, streamId, associatedStreamId, weight, requestHeaders);
       } else if (client) {
         throw new IllegalArgumentException("client streams shouldn't have associated stream IDs");
       } else { // HTTP/2 has a PUSH_PROMISE frame.
@@ -269,22 +293,37 @@ public final class Http2Connection implements Closeable {
     while (byteCount > 0) {
       int toWrite;
       synchronized (Http2Connection.this) {
+        Http2Stream stream = streams.get(streamId);
         try {
-          while (bytesLeftInWriteWindow <= 0) {
+          while (bytesLeftInWriteWindow <= 0
+              && (stream == null || stream.connectionWindowGrant <= 0)) {
             // Before blocking, confirm that the stream we're writing is still open. It's possible
             // that the stream has since been closed (such as if this write timed out.)
-            if (!streams.containsKey(streamId)) {
+            if (stream == null || !streams.containsKey(streamId)) {
               throw new IOException("stream closed");
             }
-            Http2Connection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
+            blockedWriters.add(stream);
+            try {
+              Http2Connection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
+            } finally {
+              blockedWriters.remove(stream);
+            }
           }
         } catch (InterruptedException e) {
           throw new InterruptedIOException();
         }
 
-        toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
-        toWrite = Math.min(toWrite, writer.maxDataLength());
-        bytesLeftInWriteWindow -= toWrite;
+        if (stream != null && stream.connectionWindowGrant > 0) {
+          toWrite = (int) Math.min(byteCount, stream.connectionWindowGrant);
+          toWrite = Math.min(toWrite, writer.maxDataLength());
+          stream.connectionWindowGrant -= toWrite;
+        } else {
+          toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
+          toWrite = Math.min(toWrite, writer.maxDataLength());
+          bytesLeftInWriteWindow -= toWrite;
+        }
+        // Don't hold window that this stream isn't writing now; other streams may be waiting.
+        if (byteCount == toWrite && stream != null) returnWindowGrant(stream);
       }
 
       byteCount -= toWrite;
@@ -297,7 +336,37 @@ public final class Http2Connection implements Closeable {
    */
   void addBytesToWriteWindow(long delta) {
     bytesLeftInWriteWindow += delta;
-    if (delta > 0) Http2Connection.this.notifyAll();
+    if (delta > 0) {
+      grantWriteWindow();
+      Http2Connection.this.notifyAll();
+    }
+  }
+
+  /**
+   * Splits the connection's write window among the streams waiting for it in proportion to their
+   * weights. A lone waiter takes the shared window directly.
+   */
+  private void grantWriteWindow() {
+    if (blockedWriters.size() < 2 || bytesLeftInWriteWindow <= 0) return;
+    long totalWeight = 0L;
+    for (int i = 0, size = blockedWriters.size(); i < size; i++) {
+      totalWeight += blockedWriters.get(i).weight;
+    }
+    long available = bytesLeftInWriteWindow;
+    for (int i = 0, size = blockedWriters.size(); i < size; i++) {
+      Http2Stream stream = blockedWriters.get(i);
+      long grant = available * stream.weight / totalWeight;
+      stream.connectionWindowGrant += grant;
+      bytesLeftInWriteWindow -= grant;
+    }
+  }
+
+  /** Gives the part of the write window that was set aside for {@code stream} back to everyone. */
+  private void returnWindowGrant(Http2Stream stream) {
+    if (stream.connectionWindowGrant == 0L) return;
+    bytesLeftInWriteWindow += stream.connectionWindowGrant;
+    stream.connectionWindowGrant = 0L;
+    notifyAll();
   }
 
   void writeSynResetLater(final int streamId, final ErrorCode errorCode) {
@@ -472,6 +541,9 @@ public final class Http2Connection implements Closeable {
    *     except for in tests that don't check for a connection preface.
    */
   void start(boolean sendConnectionPreface) throws IOException {
+    if (coalesceWrites) {
+      new Thread(writer.writeLoop(hostname)).start(); // Not a daemon thread.
+    }
     if (sendConnectionPreface) {
       writer.connectionPreface();
       writer.settings(okHttpSettings);
@@ -508,6 +580,7 @@ public final class Http2Connection implements Closeable {
     Listener listener = Listener.REFUSE_INCOMING_STREAMS;
     PushObserver pushObserver = PushObserver.CANCEL;
     boolean client;
+    boolean coalesceWrites;
 
     /**
      * @param client true if this peer initiated the connection; false if this peer accepted the
@@ -541,6 +614,15 @@ public final class Http2Connection implements Closeable {
       return this;
     }
 
+    /**
+     * Writes frames on a dedicated thread. Callers then only encode their frames, and frames that
+     * accumulate while the thread is busy are written and flushed together.
+     */
+    public Builder coalesceWrites(boolean coalesceWrites) {
+      this.coalesceWrites = coalesceWrites;
+      return this;
+    }
+
     public Http2Connection build() throws IOException {
       return new Http2Connection(this);
     }
@@ -739,8 +821,7 @@ public final class Http2Connection implements Closeable {
     @Override public void windowUpdate(int streamId, long windowSizeIncrement) {
       if (streamId == 0) {
         synchronized (Http2Connection.this) {
-          bytesLeftInWriteWindow += windowSizeIncrement;
-          Http2Connection.this.notifyAll();
+          addBytesToWriteWindow(windowSizeIncrement);
         }
       } else {
         Http2Stream stream = getStream(streamId);
@@ -754,7 +835,12 @@ public final class Http2Connection implements Closeable {
 
     @Override public void priority(int streamId, int streamDependency, int weight,
         boolean exclusive) {
-      // TODO: honor priority.
+      // Dependencies aren't tracked, but a new weight changes this stream's share of the
+      // connection's write window.
+      synchronized (Http2Connection.this) {
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) stream.weight = weight;
+      }
     }
 
     @Override
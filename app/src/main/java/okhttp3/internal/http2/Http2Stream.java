@@ -48,6 +48,19 @@ public final class Http2Stream {
   // guarded by this
   long bytesLeftInWriteWindow;
 
+  /**
+   * This stream's HTTP/2 weight, between 1 and 256. It is sent with the stream's headers and
+   * decides this stream's share of the connection's write window when several streams are waiting
+   * for it. Guarded by the connection.
+   */
+  int weight = Http2.DEFAULT_WEIGHT;
+
+  /**
+   * Bytes of the connection's write window that were set aside for this stream while it waited.
+   * Guarded by the connection.
+   */
+  long connectionWindowGrant;
+
   final int id;
   final Http2Connection connection;
 
@@ -120,6 +133,18 @@ public final class Http2Stream {
     return connection.client == streamIsClient;
   }
 
+  /**
+   * Changes this stream's weight, between 1 and 256, and sends it to the peer in a {@code
+   * PRIORITY} frame.
+   */
+  public void setWeight(int weight) throws IOException {
+    if (weight < 1 || weight > 256) throw new IllegalArgumentException("weight: " + weight);
+    synchronized (connection) {
+      this.weight = weight;
+    }
+    connection.writer.priority(id, 0, weight, false);
+  }
+
   public Http2Connection getConnection() {
     return connection;
   }
@@ -17,8 +17,11 @@ package okhttp3.internal.http2;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.logging.Logger;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
 import okio.Buffer;
 import okio.BufferedSink;
 
@@ -28,13 +31,16 @@ import static okhttp3.internal.http2.Http2.CONNECTION_PREFACE;
 import static okhttp3.internal.http2.Http2.FLAG_ACK;
 import static okhttp3.internal.http2.Http2.FLAG_END_HEADERS;
 import static okhttp3.internal.http2.Http2.FLAG_END_STREAM;
+import static okhttp3.internal.http2.Http2.DEFAULT_WEIGHT;
 import static okhttp3.internal.http2.Http2.FLAG_NONE;
+import static okhttp3.internal.http2.Http2.FLAG_PRIORITY;
 import static okhttp3.internal.http2.Http2.INITIAL_MAX_FRAME_SIZE;
 import static okhttp3.internal.http2.Http2.TYPE_CONTINUATION;
 import static okhttp3.internal.http2.Http2.TYPE_DATA;
 import static okhttp3.internal.http2.Http2.TYPE_GOAWAY;
 import static okhttp3.internal.http2.Http2.TYPE_HEADERS;
 import static okhttp3.internal.http2.Http2.TYPE_PING;
+import static okhttp3.internal.http2.Http2.TYPE_PRIORITY;
 import static okhttp3.internal.http2.Http2.TYPE_PUSH_PROMISE;
 import static okhttp3.internal.http2.Http2.TYPE_RST_STREAM;
 import static okhttp3.internal.http2.Http2.TYPE_SETTINGS;
@@ -42,20 +48,48 @@ import static okhttp3.internal.http2.Http2.TYPE_WINDOW_UPDATE;
 import static okhttp3.internal.http2.Http2.frameLog;
 import static okhttp3.internal.http2.Http2.illegalArgument;
 
-/** Writes HTTP/2 transport frames. */
+/**
+ * Writes HTTP/2 transport frames.
+ *
+ * <p>By default each caller writes its frames to the socket and flushes it. With a {@linkplain
+ * #writeLoop write loop} callers only encode frames into memory; the loop moves everything that
+ * accumulated while it was busy to the socket and flushes once per batch. That keeps the time this
+ * writer is locked short and saves a socket write per frame when many streams are active.
+ */
 final class Http2Writer implements Closeable {
   private static final Logger logger = Logger.getLogger(Http2.class.getName());
 
+  /** Buffered frames that make data writers wait for the write loop. */
+  private static final long WRITE_LOOP_MAX_BUFFERED = 1024 * 1024;
+
   private final BufferedSink sink;
   private final boolean client;
   private final Buffer hpackBuffer;
   private int maxFrameSize;
   private boolean closed;
 
+  /**
+   * The socket when a write loop writes to it, or null if callers write to it directly. With a
+   * write loop {@link #sink} is an in-memory buffer.
+   */
+  private final BufferedSink socketSink;
+  private boolean writeRequested;
+  private boolean writeLoopStarted;
+  private boolean writeLoopFinished;
+
   final Hpack.Writer hpackWriter;
 
   public Http2Writer(BufferedSink sink, boolean client) {
-    this.sink = sink;
+    this(sink, client, false);
+  }
+
+  /**
+   * @param coalesceWrites true to leave writing to the socket to a {@linkplain #writeLoop write
+   *     loop}, which must be started before frames are sent.
+   */
+  Http2Writer(BufferedSink sink, boolean client, boolean coalesceWrites) {
+    this.sink = coalesceWrites ? new Buffer() : sink;
+    this.socketSink = coalesceWrites ? sink : null;
     this.client = client;
     this.hpackBuffer = new Buffer();
     this.hpackWriter = new Hpack.Writer(hpackBuffer);
@@ -69,7 +103,7 @@ final class Http2Writer implements Closeable {
       logger.fine(format(">> CONNECTION %s", CONNECTION_PREFACE.hex()));
     }
     sink.write(CONNECTION_PREFACE.toByteArray());
-    sink.flush();
+    flushFrames();
   }
 
   /** Applies {@code peerSettings} and then sends a settings ACK. */
@@ -84,7 +118,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_ACK;
     int streamId = 0;
     frameHeader(streamId, length, type, flags);
-    sink.flush();
+    flushFrames();
   }
 
   /**
@@ -118,25 +152,46 @@ final class Http2Writer implements Closeable {
 
   public synchronized void flush() throws IOException {
     if (closed) throw new IOException("closed");
-    sink.flush();
+    flushFrames();
   }
 
+  /**
+   * Opens {@code streamId}. Unless {@code weight} is the default the headers carry it, with a
+   * non-exclusive dependency on the connection's root.
+   */
   public synchronized void synStream(boolean outFinished, int streamId,
-      int associatedStreamId, List<Header> headerBlock) throws IOException {
+      int associatedStreamId, int weight, List<Header> headerBlock) throws IOException {
     if (closed) throw new IOException("closed");
-    headers(outFinished, streamId, headerBlock);
+    headers(outFinished, streamId, weight, headerBlock);
   }
 
   public synchronized void synReply(boolean outFinished, int streamId,
       List<Header> headerBlock) throws IOException {
     if (closed) throw new IOException("closed");
-    headers(outFinished, streamId, headerBlock);
+    headers(outFinished, streamId, DEFAULT_WEIGHT, headerBlock);
   }
 
   public synchronized void headers(int streamId, List<Header> headerBlock)
       throws IOException {
     if (closed) throw new IOException("closed");
-    headers(false, streamId, headerBlock);
+    headers(false, streamId, DEFAULT_WEIGHT, headerBlock);
+  }
+
+  /**
+   * Changes the priority of {@code streamId}: it will depend on {@code streamDependency}, or the
+   * connection's root if that is zero, and share its parent's resources by {@code weight}.
+   */
+  public synchronized void priority(int streamId, int streamDependency, int weight,
+      boolean exclusive) throws IOException {
+    if (closed) throw new IOException("closed");
+    if (weight < 1 || weight > 256) throw illegalArgument("weight < 1 || weight > 256: %s", weight);
+    int length = 5;
+    byte type = TYPE_PRIORITY;
+    byte flags = FLAG_NONE;
+    frameHeader(streamId, length, type, flags);
+    sink.writeInt(exclusive ? streamDependency | 0x80000000 : streamDependency & 0x7fffffff);
+    sink.writeByte(weight - 1);
+    flushFrames();
   }
 
   public synchronized void rstStream(int streamId, ErrorCode errorCode)
@@ -149,7 +204,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt(errorCode.httpCode);
-    sink.flush();
+    flushFrames();
   }
 
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
@@ -171,6 +226,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     if (outFinished) flags |= FLAG_END_STREAM;
     dataFrame(streamId, flags, source, byteCount);
+    if (socketSink != null) awaitWriteLoop();
   }
 
   void dataFrame(int streamId, byte flags, Buffer buffer, int byteCount) throws IOException {
@@ -200,7 +256,7 @@ final class Http2Writer implements Closeable {
       sink.writeShort(id);
       sink.writeInt(settings.get(i));
     }
-    sink.flush();
+    flushFrames();
   }
 
   /**
@@ -216,7 +272,7 @@ final class Http2Writer implements Closeable {
     frameHeader(streamId, length, type, flags);
     sink.writeInt(payload1);
     sink.writeInt(payload2);
-    sink.flush();
+    flushFrames();
   }
 
   /**
@@ -241,7 +297,7 @@ final class Http2Writer implements Closeable {
     if (debugData.length > 0) {
       sink.write(debugData);
     }
-    sink.flush();
+    flushFrames();
   }
 
   /**
@@ -259,7 +315,7 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt((int) windowSizeIncrement);
-    sink.flush();
+    flushFrames();
   }
 
   public void frameHeader(int streamId, int length, byte type, byte flags) throws IOException {
@@ -276,7 +332,89 @@ final class Http2Writer implements Closeable {
 
   @Override public synchronized void close() throws IOException {
     closed = true;
-    sink.close();
+    if (socketSink == null) {
+      sink.close();
+    } else if (!writeLoopStarted) {
+      socketSink.close();
+    } else {
+      notifyAll(); // The write loop sends the remaining frames and then closes the socket.
+      try {
+        while (!writeLoopFinished) wait();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  /** Sends the frames written so far, or asks the write loop to. */
+  private void flushFrames() throws IOException {
+    if (socketSink == null) {
+      sink.flush();
+    } else {
+      writeRequested = true;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Asks the write loop to send data without waiting for a flush, as a socket's buffered sink
+   * would, and holds the caller back while the backlog is too large so that a fast upload can't
+   * buffer without bound.
+   */
+  private void awaitWriteLoop() throws IOException {
+    writeRequested = true;
+    notifyAll();
+    try {
+      while (sink.buffer().size() >= WRITE_LOOP_MAX_BUFFERED && !closed) wait();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    if (closed) throw new IOException("closed");
+  }
+
+  /** Returns the loop that writes this writer's frames to the socket. Run it on its own thread. */
+  synchronized NamedRunnable writeLoop(String hostname) {
+    if (socketSink == null || writeLoopStarted) throw new IllegalStateException();
+    writeLoopStarted = true;
+    return new WriteLoop(hostname);
+  }
+
+  final class WriteLoop extends NamedRunnable {
+    WriteLoop(String hostname) {
+      super("OkHttp %s Writer", hostname);
+    }
+
+    @Override protected void execute() {
+      Buffer batch = new Buffer();
+      try {
+        boolean last;
+        do {
+          synchronized (Http2Writer.this) {
+            while (!writeRequested && !closed) {
+              Http2Writer.this.wait();
+            }
+            writeRequested = false;
+            last = closed;
+            batch.write(sink.buffer(), sink.buffer().size());
+            Http2Writer.this.notifyAll(); // Callers waiting for room may continue.
+          }
+          if (batch.size() > 0) {
+            socketSink.write(batch, batch.size());
+            socketSink.flush();
+          }
+        } while (!last);
+      } catch (IOException | InterruptedException ignored) {
+        // Closing the socket below fails the connection's reader, which closes the streams.
+      } finally {
+        Util.closeQuietly(socketSink);
+        synchronized (Http2Writer.this) {
+          closed = true;
+          sink.buffer().clear();
+          writeLoopFinished = true;
+          Http2Writer.this.notifyAll();
+        }
+      }
+    }
   }
 
   private static void writeMedium(BufferedSink sink, int i) throws IOException {
@@ -294,16 +432,24 @@ final class Http2Writer implements Closeable {
     }
   }
 
-  void headers(boolean outFinished, int streamId, List<Header> headerBlock) throws IOException {
+  void headers(boolean outFinished, int streamId, int weight, List<Header> headerBlock)
+      throws IOException {
     if (closed) throw new IOException("closed");
     hpackWriter.writeHeaders(headerBlock);
 
+    // A weighted stream's first frame starts with its dependency and weight.
+    int priorityLength = weight != DEFAULT_WEIGHT ? 5 : 0;
     long byteCount = hpackBuffer.size();
-    int length = (int) Math.min(maxFrameSize, byteCount);
+    int length = (int) Math.min(maxFrameSize - priorityLength, byteCount);
     byte type = TYPE_HEADERS;
     byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
     if (outFinished) flags |= FLAG_END_STREAM;
-    frameHeader(streamId, length, type, flags);
+    if (priorityLength != 0) flags |= FLAG_PRIORITY;
+    frameHeader(streamId, length + priorityLength, type, flags);
+    if (priorityLength != 0) {
+      sink.writeInt(0); // Not exclusive, depends on the root.
+      sink.writeByte(weight - 1);
+    }
     sink.write(hpackBuffer, length);
 
     if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
@@ -3,9 +3,9 @@ package okhttp3.internal.http2;
 /**
  * Created by Administrator on 2017/5/9 0009.
  */
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import okio.BufferedSink;
+import okio.BufferedSource;
 import okio.ByteString;
 
 /**
@@ -71,10 +71,21 @@ class Huffman {
         return INSTANCE;
     }
 
-    private final Node root = new Node();
+    /** Set in a transition that completes a symbol, which is in the low 8 bits. */
+    private static final int EMITS = 0x100;
+
+    /** The next state is in the bits above this shift. */
+    private static final int STATE_SHIFT = 16;
+
+    /** The state that invalid input leads to, premultiplied by 16 like every state. */
+    private final int failedState;
+
+    /** Transitions of the decoder, indexed by state and the next four input bits. */
+    private final int[] transitions;
 
     private Huffman() {
-        buildTree();
+        transitions = buildTransitions();
+        failedState = transitions.length - 16;
     }
 
     void encode(ByteString data, BufferedSink sink) throws IOException {
@@ -114,103 +125,81 @@ class Huffman {
         return (int) ((len + 7) >> 3);
     }
 
-    byte[] decode(byte[] buf) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Node node = root;
-        int current = 0;
-        int nbits = 0;
-        for (int i = 0; i < buf.length; i++) {
-            int b = buf[i] & 0xFF;
-            current = (current << 8) | b;
-            nbits += 8;
-            while (nbits >= 8) {
-                int c = (current >>> (nbits - 8)) & 0xFF;
-                node = node.children[c];
-                if (node.children == null) {
-                    // terminal node
-                    baos.write(node.symbol);
-                    nbits -= node.terminalBits;
-                    node = root;
-                } else {
-                    // non-terminal node
-                    nbits -= 8;
-                }
-            }
-        }
-
-        while (nbits > 0) {
-            int c = (current << (8 - nbits)) & 0xFF;
-            node = node.children[c];
-            if (node.children != null || node.terminalBits > nbits) {
-                break;
-            }
-            baos.write(node.symbol);
-            nbits -= node.terminalBits;
-            node = root;
-        }
-
-        return baos.toByteArray();
-    }
-
-    private void buildTree() {
-        for (int i = 0; i < CODE_LENGTHS.length; i++) {
-            addCode(i, CODES[i], CODE_LENGTHS[i]);
+    /**
+     * 从source中直接解码byteCount个哈夫曼编码的字节，每一步处理4个bit
+     * Decodes {@code byteCount} Huffman-encoded bytes from {@code source} into {@code sink} and
+     * returns the number of bytes decoded. The input is consumed four bits at a step by a table
+     * lookup. Incomplete codes at the end are padding and are ignored.
+     *
+     * @param sink must hold at least {@code byteCount * 8 / 5} bytes, since no code is shorter than
+     * 5 bits.
+     * @throws IOException if the input contains the end-of-string code or runs out.
+     */
+    int decode(BufferedSource source, long byteCount, byte[] sink) throws IOException {
+        int[] transitions = this.transitions;
+        int state = 0;
+        int size = 0;
+        for (long i = 0; i < byteCount; i++) {
+            int b = source.readByte() & 0xFF;
+
+            int transition = transitions[state | (b >>> 4)];
+            if ((transition & EMITS) != 0) sink[size++] = (byte) transition;
+
+            transition = transitions[(transition >>> STATE_SHIFT) | (b & 0x0F)];
+            if ((transition & EMITS) != 0) sink[size++] = (byte) transition;
+
+            state = transition >>> STATE_SHIFT;
+            if (state == failedState) throw new IOException("invalid Huffman code");
         }
+        return size;
     }
 
-    private void addCode(int sym, int code, byte len) {
-        Node terminal = new Node(sym, len);
-
-        Node current = root;
-        while (len > 8) {
-            len -= 8;
-            int i = ((code >>> len) & 0xFF);
-            if (current.children == null) {
-                throw new IllegalStateException("invalid dictionary: prefix not unique");
-            }
-            if (current.children[i] == null) {
-                current.children[i] = new Node();
+    private int[] buildTransitions() {
+        // A binary tree of the codes. Internal nodes are numbered from the root, 0. Each has two
+        // child slots holding another internal node, the complement of a symbol for a leaf, or 0
+        // where no code continues (only on the way to the end-of-string code).
+        int[] children = new int[CODES.length * 2];
+        int nodeCount = 1;
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int code = CODES[symbol];
+            int node = 0;
+            for (int bit = CODE_LENGTHS[symbol] - 1; bit > 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (children[slot] == 0) children[slot] = nodeCount++;
+                node = children[slot];
             }
-            current = current.children[i];
-        }
-
-        int shift = 8 - len;
-        int start = (code << shift) & 0xFF;
-        int end = 1 << shift;
-        for (int i = start; i < start + end; i++) {
-            current.children[i] = terminal;
+            children[node * 2 + (code & 1)] = ~symbol;
         }
-    }
-
-    private static final class Node {
 
-        // Null if terminal.
-        final Node[] children;
-
-        // Terminal nodes have a symbol.
-        final int symbol;
-
-        // Number of bits represented in the terminal node.
-        final int terminalBits;
-
-        /** Construct an internal node. */
-        Node() {
-            this.children = new Node[256];
-            this.symbol = 0; // Not read.
-            this.terminalBits = 0; // Not read.
+        // Each state is an internal node that a partial code has reached. An entry for a state and
+        // the next four bits holds the state they lead to and the symbol completed on the way, if
+        // any. At most one symbol completes in four bits because every code has at least five.
+        // States and the failed state are stored premultiplied by 16.
+        int[] result = new int[(nodeCount + 1) * 16];
+        for (int node = 0; node < nodeCount; node++) {
+            for (int nibble = 0; nibble < 16; nibble++) {
+                int current = node;
+                int transition = 0;
+                for (int bit = 3; bit >= 0; bit--) {
+                    int child = children[current * 2 + ((nibble >>> bit) & 1)];
+                    if (child == 0) {
+                        current = nodeCount;
+                        transition = 0;
+                        break;
+                    } else if (child < 0) {
+                        transition = EMITS | ~child;
+                        current = 0;
+                    } else {
+                        current = child;
+                    }
+                }
+                result[node * 16 + nibble] = (current * 16) << STATE_SHIFT | transition;
+            }
         }
-
-        /**
-         * Construct a terminal node.
-         *
-         * @param symbol symbol the node represents
-         * @param bits length of Huffman code in bits
-         */
-        Node(int symbol, int bits) {
-            this.children = null;
-            this.symbol = symbol;
-            int b = bits & 0x07;
-            this.terminalBits = b == 0 ? 8 : b;
+        // The failed state is absorbing. Its entries never emit.
+        for (int nibble = 0; nibble < 16; nibble++) {
+            result[nodeCount * 16 + nibble] = (nodeCount * 16) << STATE_SHIFT;
         }
+        return result;
     }
 }
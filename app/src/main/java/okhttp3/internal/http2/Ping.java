@@ -10,7 +10,7 @@ import java.util.concurrent.TimeUnit;
  * 一个本地的ping类
  * A locally-originated ping.
  */
-final class Ping {
+public final class Ping {
     private final CountDownLatch latch = new CountDownLatch(1);
     private long sent = -1;
     private long received = -1;
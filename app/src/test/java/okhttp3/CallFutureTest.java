@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import okhttp3.internal.http.RealResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class CallFutureTest {
+  private final OkHttpClient client = new OkHttpClient();
+  private final Request request = new Request.Builder().url("http://example.com/").build();
+
+  @Test public void completeThenCancel() throws Exception {
+    CallFuture future = new CallFuture(client.newCall(request));
+    AtomicBoolean closed = new AtomicBoolean();
+    Response response = response(closed);
+    future.complete(response);
+    assertFalse(future.cancel(true));
+    assertSame(response, future.get());
+    assertFalse(closed.get());
+  }
+
+  @Test public void cancelThenComplete() throws Exception {
+    CallFuture future = new CallFuture(client.newCall(request));
+    AtomicBoolean closed = new AtomicBoolean();
+    assertTrue(future.cancel(true));
+    future.complete(response(closed));
+    assertTrue(closed.get());
+    try {
+      future.get();
+      fail();
+    } catch (CancellationException expected) {
+    }
+  }
+
+  /** Whichever of complete() and cancel() wins, a response nobody will get is closed. */
+  @Test public void completeRacesCancel() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      final CallFuture future = new CallFuture(client.newCall(request));
+      final AtomicBoolean closed = new AtomicBoolean();
+      final Response response = response(closed);
+      final CyclicBarrier barrier = new CyclicBarrier(2);
+      Thread completer = new Thread() {
+        @Override public void run() {
+          await(barrier);
+          future.complete(response);
+        }
+      };
+      completer.start();
+      await(barrier);
+      boolean canceled = future.cancel(true);
+      completer.join();
+
+      assertEquals(canceled, future.isCancelled());
+      if (canceled) {
+        assertTrue("canceled future leaked its response", closed.get());
+        try {
+          future.get();
+          fail();
+        } catch (CancellationException expected) {
+        }
+      } else {
+        assertFalse(closed.get());
+        assertSame(response, future.get());
+      }
+    }
+  }
+
+  @Test public void failRacesCancel() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      final CallFuture future = new CallFuture(client.newCall(request));
+      final CyclicBarrier barrier = new CyclicBarrier(2);
+      final IOException failure = new IOException("boom");
+      Thread failer = new Thread() {
+        @Override public void run() {
+          await(barrier);
+          future.fail(failure);
+        }
+      };
+      failer.start();
+      await(barrier);
+      boolean canceled = future.cancel(true);
+      failer.join();
+
+      try {
+        future.get();
+        fail();
+      } catch (CancellationException e) {
+        assertTrue(canceled);
+      } catch (ExecutionException e) {
+        assertFalse(canceled);
+        assertSame(failure, e.getCause());
+      }
+    }
+  }
+
+  private Response response(final AtomicBoolean closed) {
+    ForwardingSource source = new ForwardingSource(new Buffer().writeUtf8("abc")) {
+      @Override public void close() throws IOException {
+        closed.set(true);
+        super.close();
+      }
+    };
+    return new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .body(new RealResponseBody(Headers.of(), Okio.buffer(source)))
+        .build();
+  }
+
+  private static void await(CyclicBarrier barrier) {
+    try {
+      barrier.await();
+    } catch (Exception e) {
+      throw new AssertionError(e);
+    }
+  }
+}
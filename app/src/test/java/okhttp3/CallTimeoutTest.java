@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class CallTimeoutTest {
+  /** The body an interceptor or the cache built is reported as is, not re-derived from headers. */
+  @Test public void timeoutKeepsBodyTypeAndLength() throws IOException {
+    OkHttpClient client = new OkHttpClient.Builder()
+        .callTimeout(10, TimeUnit.SECONDS)
+        .addInterceptor(new Interceptor() {
+          @Override public Response intercept(Chain chain) {
+            return new Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .header("Content-Type", "text/plain")
+                .header("Content-Length", "99")
+                .body(ResponseBody.create(MediaType.parse("application/json; charset=utf-8"), "{}"))
+                .build();
+          }
+        })
+        .build();
+
+    Response response = client.newCall(
+        new Request.Builder().url("http://example.com/").build()).execute();
+    assertEquals(MediaType.parse("application/json; charset=utf-8"), response.body().contentType());
+    assertEquals(2L, response.body().contentLength());
+    assertEquals("{}", response.body().string());
+  }
+}
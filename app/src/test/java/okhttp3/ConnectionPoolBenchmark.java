@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.connection.RealConnection;
+import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
+
+/**
+ * Measures how many connections per second threads can take from and return to a {@link
+ * ConnectionPool} as the number of threads grows. Each thread acquires a pooled connection to one
+ * of several hosts and releases it, as a call does around each exchange. The pool is filled with
+ * unconnected connections up front so that no thread ever connects.
+ *
+ * <p>This isn't a test. Run {@link #main} and compare the throughput at each thread count.
+ */
+public final class ConnectionPoolBenchmark {
+  static final int HOSTS = 8;
+  static final int MAX_THREADS = 128;
+  static final int CONNECTIONS_PER_HOST = MAX_THREADS / HOSTS + 1;
+  static final long WARMUP_MILLIS = 1000L;
+  static final long MEASURE_MILLIS = 3000L;
+
+  final OkHttpClient client = new OkHttpClient.Builder()
+      .proxy(Proxy.NO_PROXY)
+      .build();
+  final ConnectionPool pool = new ConnectionPool(
+      HOSTS * CONNECTIONS_PER_HOST, 5, TimeUnit.MINUTES);
+  final List<Address> addresses = new ArrayList<>();
+
+  volatile boolean running;
+  volatile boolean measuring;
+
+  ConnectionPoolBenchmark() {
+    for (int i = 0; i < HOSTS; i++) {
+      Address address = RetryAndFollowUpInterceptor.createAddress(
+          client, HttpUrl.parse("http://host" + i + ".example.com/"));
+      addresses.add(address);
+      Route route = new Route(address, Proxy.NO_PROXY,
+          InetSocketAddress.createUnresolved(address.url().host(), address.url().port()));
+      for (int j = 0; j < CONNECTIONS_PER_HOST; j++) {
+        RealConnection connection =
+            RealConnection.testConnection(pool, route, new Socket(), System.nanoTime());
+        synchronized (connection) {
+          pool.put(connection);
+        }
+      }
+    }
+  }
+
+  /** Returns the acquisitions per second made by {@code threadCount} threads. */
+  double run(int threadCount) throws Exception {
+    final long[] counts = new long[threadCount];
+    final CountDownLatch started = new CountDownLatch(threadCount);
+    final CountDownLatch finished = new CountDownLatch(threadCount);
+    final Throwable[] failure = new Throwable[1];
+    running = true;
+
+    for (int t = 0; t < threadCount; t++) {
+      final int index = t;
+      final Address address = addresses.get(t % HOSTS);
+      new Thread("benchmark " + t) {
+        @Override public void run() {
+          started.countDown();
+          try {
+            long count = 0;
+            while (running) {
+              acquireAndRelease(address);
+              if (measuring) count++;
+            }
+            counts[index] = count;
+          } catch (Throwable e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          } finally {
+            finished.countDown();
+          }
+        }
+      }.start();
+    }
+
+    started.await();
+    Thread.sleep(WARMUP_MILLIS);
+    measuring = true;
+    long start = System.nanoTime();
+    Thread.sleep(MEASURE_MILLIS);
+    measuring = false;
+    long elapsedNanos = System.nanoTime() - start;
+    running = false;
+    finished.await();
+
+    synchronized (failure) {
+      if (failure[0] != null) throw new AssertionError(failure[0]);
+    }
+    if (pool.idleConnectionCount() != HOSTS * CONNECTIONS_PER_HOST) {
+      throw new AssertionError("leaked connections: " + pool.idleConnectionCount() + " idle of "
+          + pool.connectionCount());
+    }
+
+    long total = 0;
+    for (int t = 0; t < threadCount; t++) {
+      total += counts[t];
+    }
+    return total * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+  }
+
+  void acquireAndRelease(Address address) throws IOException {
+    StreamAllocation streamAllocation =
+        new StreamAllocation(pool, address, null, EventListener.NONE, null);
+    streamAllocation.acquireConnection(client);
+    streamAllocation.release();
+  }
+
+  public static void main(String[] args) throws Exception {
+    ConnectionPoolBenchmark benchmark = new ConnectionPoolBenchmark();
+    System.out.println("threads\tacquisitions/s");
+    for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+      System.out.printf("%d\t%.0f%n", threads, benchmark.run(threads));
+    }
+  }
+}
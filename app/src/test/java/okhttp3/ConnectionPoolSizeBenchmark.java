@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.connection.RealConnection;
+import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
+
+/**
+ * Measures how long it takes to take a connection from and return it to a {@link ConnectionPool}
+ * as the pool grows, both in hosts and in connections per host. A single thread acquires and
+ * releases a connection to each host in turn, so there is no contention. The pool is filled with
+ * unconnected connections up front so that no acquisition ever connects.
+ *
+ * <p>This isn't a test. Run {@link #main} and compare the time per acquisition at each size:
+ * acquiring shouldn't get slower as hosts are added.
+ *
+ * @see ConnectionPoolBenchmark
+ */
+public final class ConnectionPoolSizeBenchmark {
+  static final int[] HOSTS = {1, 16, 256, 1024};
+  static final int[] CONNECTIONS_PER_HOST = {1, 4, 16};
+  static final long WARMUP_MILLIS = 1000L;
+  static final long MEASURE_MILLIS = 2000L;
+
+  final OkHttpClient client = new OkHttpClient.Builder()
+      .proxy(Proxy.NO_PROXY)
+      .build();
+
+  /** Returns the mean nanos per acquisition from a pool of {@code hosts} hosts. */
+  double run(int hosts, int connectionsPerHost) throws IOException {
+    ConnectionPool pool = new ConnectionPool(hosts * connectionsPerHost, 5, TimeUnit.MINUTES);
+    List<Address> addresses = new ArrayList<>();
+    for (int i = 0; i < hosts; i++) {
+      Address address = RetryAndFollowUpInterceptor.createAddress(
+          client, HttpUrl.parse("http://host" + i + ".example.com/"));
+      addresses.add(address);
+      Route route = new Route(address, Proxy.NO_PROXY,
+          InetSocketAddress.createUnresolved(address.url().host(), address.url().port()));
+      for (int j = 0; j < connectionsPerHost; j++) {
+        RealConnection connection =
+            RealConnection.testConnection(pool, route, new Socket(), System.nanoTime());
+        synchronized (connection) {
+          pool.put(connection);
+        }
+      }
+    }
+
+    long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+    for (int i = 0; System.nanoTime() < warmupEnd; i++) {
+      acquireAndRelease(pool, addresses.get(i % hosts));
+    }
+
+    long count = 0;
+    long start = System.nanoTime();
+    long measureEnd = start + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+    long now;
+    do {
+      for (int i = 0; i < 1000; i++) {
+        acquireAndRelease(pool, addresses.get((int) (count++ % hosts)));
+      }
+      now = System.nanoTime();
+    } while (now < measureEnd);
+
+    if (pool.idleConnectionCount() != hosts * connectionsPerHost) {
+      throw new AssertionError("leaked connections: " + pool.idleConnectionCount() + " idle of "
+          + pool.connectionCount());
+    }
+    pool.evictAll();
+    return (now - start) / (double) count;
+  }
+
+  void acquireAndRelease(ConnectionPool pool, Address address) throws IOException {
+    StreamAllocation streamAllocation =
+        new StreamAllocation(pool, address, null, EventListener.NONE, null);
+    streamAllocation.acquireConnection(client);
+    streamAllocation.release();
+  }
+
+  public static void main(String[] args) throws Exception {
+    ConnectionPoolSizeBenchmark benchmark = new ConnectionPoolSizeBenchmark();
+    System.out.println("hosts\tconnections/host\tconnections\tns/acquisition");
+    for (int hosts : HOSTS) {
+      for (int connectionsPerHost : CONNECTIONS_PER_HOST) {
+        System.out.printf("%d\t%d\t%d\t%.0f%n", hosts, connectionsPerHost,
+            hosts * connectionsPerHost, benchmark.run(hosts, connectionsPerHost));
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.connection.RealConnection;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class ConnectionPoolTest {
+  private final OkHttpClient client = new OkHttpClient.Builder()
+      .proxy(Proxy.NO_PROXY)
+      .build();
+
+  /** A leaked connection goes before one to a host over its maximum. */
+  @Test public void leakedConnectionEvictedBeforeOverMaxConnection() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 5, TimeUnit.MINUTES);
+    synchronized (pool) {
+      pool.cleanupRunning = true; // Prevent the cleanup thread from running.
+    }
+    pool.setHostPolicy("a.example.com", 0, 1, 5, TimeUnit.MINUTES);
+
+    long now = System.nanoTime();
+    RealConnection a1 = pooledConnection(pool, "a.example.com", now - 2000L);
+    RealConnection a2 = pooledConnection(pool, "a.example.com", now - 1000L);
+    RealConnection leaked = pooledConnection(pool, "b.example.com", now - 1000L);
+    synchronized (leaked) {
+      leaked.noNewStreams = true;
+    }
+
+    assertEquals(0L, pool.cleanup(now));
+    assertEquals(2, pool.connectionCount());
+    assertTrue(leaked.socket().isClosed());
+    assertFalse(a1.socket().isClosed());
+    assertFalse(a2.socket().isClosed());
+
+    // Then the longest idle connection to the host over its maximum.
+    assertEquals(0L, pool.cleanup(now));
+    assertEquals(1, pool.connectionCount());
+    assertTrue(a1.socket().isClosed());
+    assertFalse(a2.socket().isClosed());
+  }
+
+  private RealConnection pooledConnection(ConnectionPool pool, String host, long idleAtNanos) {
+    Address address = RetryAndFollowUpInterceptor.createAddress(
+        client, HttpUrl.parse("http://" + host + "/"));
+    Route route = new Route(address, Proxy.NO_PROXY,
+        InetSocketAddress.createUnresolved(host, address.url().port()));
+    RealConnection connection =
+        RealConnection.testConnection(pool, route, new Socket(), idleAtNanos);
+    synchronized (connection) {
+      pool.put(connection);
+    }
+    return connection;
+  }
+}
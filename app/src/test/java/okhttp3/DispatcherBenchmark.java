@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how quickly a {@link Dispatcher} admits and promotes asynchronous calls as its queue
+ * grows. Most queued calls are to one busy host and were enqueued first; the rest are spread over
+ * other hosts behind them. Calls wait at a gate until every call has been enqueued and then
+ * return a canned response without touching the network, so that the dispatcher's own work is
+ * what is measured.
+ *
+ * <p>This isn't a test. Run {@link #main} and compare the enqueue and drain times at each queue
+ * size: neither should grow faster than the number of calls.
+ */
+public final class DispatcherBenchmark {
+  static final int[] CALLS = {1000, 5000, 20000};
+  static final int OTHER_HOSTS = 15;
+  static final int ROUNDS = 3;
+
+  /** Returns {enqueue nanos per call, drain calls per second} for {@code callCount} calls. */
+  double[] run(int callCount) throws Exception {
+    final CountDownLatch gate = new CountDownLatch(1);
+    final CountDownLatch idle = new CountDownLatch(1);
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setIdleCallback(new Runnable() {
+      @Override public void run() {
+        idle.countDown();
+      }
+    });
+    OkHttpClient client = new OkHttpClient.Builder()
+        .dispatcher(dispatcher)
+        .addInterceptor(new Interceptor() {
+          @Override public Response intercept(Chain chain) throws IOException {
+            try {
+              gate.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return new Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(null, ""))
+                .build();
+          }
+        })
+        .build();
+    Callback callback = new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+        throw new AssertionError(e);
+      }
+
+      @Override public void onResponse(Call call, Response response) {
+        response.close();
+      }
+    };
+
+    Request hot = new Request.Builder().url("http://hot.example.com/").build();
+    Request[] others = new Request[OTHER_HOSTS];
+    for (int i = 0; i < OTHER_HOSTS; i++) {
+      others[i] = new Request.Builder().url("http://host" + i + ".example.com/").build();
+    }
+    int hotCount = callCount * 9 / 10;
+    Call[] calls = new Call[callCount];
+    for (int i = 0; i < callCount; i++) {
+      calls[i] = client.newCall(i < hotCount ? hot : others[i % OTHER_HOSTS]);
+    }
+
+    long enqueueStart = System.nanoTime();
+    for (Call call : calls) {
+      call.enqueue(callback);
+    }
+    long enqueueNanos = System.nanoTime() - enqueueStart;
+
+    long drainStart = System.nanoTime();
+    gate.countDown();
+    if (!idle.await(5, TimeUnit.MINUTES)) throw new AssertionError("calls didn't finish");
+    long drainNanos = System.nanoTime() - drainStart;
+
+    return new double[] {
+        enqueueNanos / (double) callCount,
+        callCount * (double) TimeUnit.SECONDS.toNanos(1) / drainNanos
+    };
+  }
+
+  public static void main(String[] args) throws Exception {
+    DispatcherBenchmark benchmark = new DispatcherBenchmark();
+    benchmark.run(CALLS[CALLS.length - 1]); // Warm up.
+    System.out.println("calls\tns/enqueue\tcalls/s drained");
+    for (int callCount : CALLS) {
+      for (int round = 0; round < ROUNDS; round++) {
+        double[] result = benchmark.run(callCount);
+        System.out.printf("%d\t%.0f\t%.0f%n", callCount, result[0], result[1]);
+      }
+    }
+  }
+}
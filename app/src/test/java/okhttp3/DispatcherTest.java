@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class DispatcherTest {
+  private final Dispatcher dispatcher = new Dispatcher();
+  private final OkHttpClient client = new OkHttpClient.Builder()
+      .dispatcher(dispatcher)
+      .addInterceptor(new Interceptor() {
+        @Override public Response intercept(Chain chain) {
+          return new Response.Builder()
+              .request(chain.request())
+              .protocol(Protocol.HTTP_1_1)
+              .code(503)
+              .message("Service Unavailable")
+              .body(ResponseBody.create(null, ""))
+              .build();
+        }
+      })
+      .build();
+
+  /** A host that goes idle between calls keeps the limit its failures earned it. */
+  @Test public void adaptiveLimitOutlivesIdleHost() throws Exception {
+    dispatcher.setAdaptiveMaxRequestsPerHost(true);
+    assertEquals(5, dispatcher.maxRequestsForHost("example.com"));
+
+    // 5 * 0.9 * 0.9 * 0.9 = 3.6. The host is idle after each call.
+    for (int i = 0; i < 3; i++) {
+      awaitIdle(client.newCall(new Request.Builder().url("http://example.com/").build()));
+      assertEquals(0, dispatcher.runningCallsCount());
+    }
+    assertEquals(3, dispatcher.maxRequestsForHost("example.com"));
+    assertEquals(5, dispatcher.maxRequestsForHost("other.example.com"));
+
+    dispatcher.setAdaptiveMaxRequestsPerHost(false);
+    dispatcher.setAdaptiveMaxRequestsPerHost(true);
+    assertEquals(5, dispatcher.maxRequestsForHost("example.com"));
+  }
+
+  /** Runs {@code call} asynchronously and waits until the dispatcher has finished it. */
+  private void awaitIdle(Call call) throws InterruptedException {
+    final CountDownLatch idle = new CountDownLatch(1);
+    dispatcher.setIdleCallback(new Runnable() {
+      @Override public void run() {
+        idle.countDown();
+      }
+    });
+    call.enqueue(new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+      }
+
+      @Override public void onResponse(Call call, Response response) {
+        response.close();
+      }
+    });
+    assertTrue(idle.await(5, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.Internal;
+import okhttp3.internal.cache.CacheRequest;
+import okhttp3.internal.cache.CacheStrategy;
+import okhttp3.internal.cache.InternalCache;
+import okio.BufferedSource;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class CoalescingInterceptorTest {
+  /** Followers need time to join the flight before the leader's response is released. */
+  private static final long JOIN_MILLIS = 140L;
+
+  private final CountDownLatch respond = new CountDownLatch(1);
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private File directory;
+  private ServerSocket serverSocket;
+  private final CountingCache cache = new CountingCache();
+  private OkHttpClient client;
+  private Request request;
+
+  @Before public void setUp() throws Exception {
+    directory = File.createTempFile("CoalescingInterceptorTest", "");
+    directory.delete();
+    directory.mkdirs();
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread server = new Thread("CoalescingInterceptorTest server") {
+      @Override public void run() {
+        while (true) {
+          try {
+            serve(serverSocket.accept());
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }
+    };
+    server.setDaemon(true);
+    server.start();
+
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+        .proxy(Proxy.NO_PROXY)
+        .coalesceRequests(directory);
+    Internal.instance.setCache(builder, cache);
+    client = builder.build();
+    request = new Request.Builder()
+        .url("http://127.0.0.1:" + serverSocket.getLocalPort() + "/")
+        .build();
+  }
+
+  @After public void tearDown() throws Exception {
+    respond.countDown();
+    serverSocket.close();
+    directory.delete();
+  }
+
+  /** Answers each request on {@code socket} once {@link #respond} is released. */
+  private void serve(final Socket socket) {
+    new Thread("CoalescingInterceptorTest connection") {
+      @Override public void run() {
+        try {
+          BufferedSource source = Okio.buffer(Okio.source(socket));
+          OutputStream out = socket.getOutputStream();
+          while (true) {
+            String line = source.readUtf8LineStrict();
+            while (!source.readUtf8LineStrict().isEmpty()) {
+            }
+            if (line.isEmpty()) continue;
+            requestCount.incrementAndGet();
+            respond.await();
+            out.write(("HTTP/1.1 200 OK\r\n"
+                + "Cache-Control: max-age=60\r\n"
+                + "Content-Length: 5\r\n"
+                + "\r\n"
+                + "hello").getBytes("UTF-8"));
+            out.flush();
+          }
+        } catch (IOException | InterruptedException ignored) {
+        }
+      }
+    }.start();
+  }
+
+  /** A canceled follower stops waiting right away instead of on the next poll. */
+  @Test public void canceledFollowerWakesImmediately() throws Exception {
+    AsyncCall leader = new AsyncCall(client.newCall(request));
+    Thread.sleep(JOIN_MILLIS);
+    AsyncCall follower = new AsyncCall(client.newCall(request));
+    Thread.sleep(JOIN_MILLIS);
+
+    long cancelAt = System.nanoTime();
+    follower.call.cancel();
+    follower.await();
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(follower.finishedAt - cancelAt);
+    assertNotNull(follower.failure.get());
+    assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 40);
+
+    respond.countDown();
+    leader.await();
+    assertEquals("hello", leader.body.get());
+    assertEquals(1, requestCount.get());
+  }
+
+  /** The response is offered to the cache once, by the leader, however many calls share it. */
+  @Test public void onlyLeaderWritesCache() throws Exception {
+    AsyncCall leader = new AsyncCall(client.newCall(request));
+    Thread.sleep(JOIN_MILLIS);
+    AsyncCall follower1 = new AsyncCall(client.newCall(request));
+    AsyncCall follower2 = new AsyncCall(client.newCall(request));
+    Thread.sleep(JOIN_MILLIS);
+
+    respond.countDown();
+    for (AsyncCall call : new AsyncCall[] {leader, follower1, follower2}) {
+      call.await();
+      assertEquals("hello", call.body.get());
+    }
+    assertEquals(1, requestCount.get());
+    assertEquals(1, cache.putCount.get());
+  }
+
+  /** A cache that is always empty and counts the responses offered to it. */
+  static final class CountingCache implements InternalCache {
+    final AtomicInteger putCount = new AtomicInteger();
+
+    @Override public Response get(Request request) {
+      return null;
+    }
+
+    @Override public CacheRequest put(Response response) {
+      putCount.incrementAndGet();
+      return null;
+    }
+
+    @Override public void remove(Request request) {
+    }
+
+    @Override public void update(Response cached, Response network) {
+    }
+
+    @Override public void trackConditionalCacheHit() {
+    }
+
+    @Override public void trackResponse(CacheStrategy cacheStrategy) {
+    }
+  }
+
+  /** Executes a call on a thread of its own and reads its body. */
+  static final class AsyncCall extends Thread {
+    final Call call;
+    final AtomicReference<String> body = new AtomicReference<>();
+    final AtomicReference<IOException> failure = new AtomicReference<>();
+    volatile long finishedAt;
+
+    AsyncCall(Call call) {
+      this.call = call;
+      start();
+    }
+
+    @Override public void run() {
+      try (Response response = call.execute()) {
+        body.set(response.body().string());
+      } catch (IOException e) {
+        failure.set(e);
+      } finally {
+        finishedAt = System.nanoTime();
+      }
+    }
+
+    void await() throws InterruptedException {
+      join(5000L);
+      if (isAlive()) throw new AssertionError("call didn't finish");
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class HedgingPolicyTest {
+  private static final String HOST = "example.com";
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * Simulates the samples a {@link HedgedExchange} records for a host where 10% of attempts take
+   * 200 ms and the rest 5 to 15 ms. A hedge answers in the fast time. If only winners were
+   * recorded the slow attempts would never be seen, the delay would settle near 15 ms and about
+   * 15% of requests would be hedged.
+   */
+  @Test public void slowPrimariesKeepDelayFromDrifting() {
+    HedgingPolicy policy = new HedgingPolicy(MILLIS);
+    Random random = new Random(0);
+    int hedged = 0;
+    int requests = 0;
+    for (int i = 0; i < 20000; i++) {
+      long delayNanos = policy.delayNanos(HOST);
+      long primaryNanos = random.nextInt(10) == 0 ? 200 * MILLIS : fast(random);
+      boolean hedge = primaryNanos > delayNanos;
+      if (hedge) {
+        long hedgeNanos = fast(random);
+        if (delayNanos + hedgeNanos < primaryNanos) {
+          policy.headersReceived(HOST, hedgeNanos);
+          policy.headersNotReceived(HOST, delayNanos + hedgeNanos);
+        } else {
+          policy.headersReceived(HOST, primaryNanos);
+        }
+      } else {
+        policy.headersReceived(HOST, primaryNanos);
+      }
+
+      if (i >= 10000) {
+        requests++;
+        if (hedge) hedged++;
+      }
+    }
+
+    assertTrue("delay " + policy.delayNanos(HOST), policy.delayNanos(HOST) > 15 * MILLIS);
+    assertTrue("hedged " + hedged + " of " + requests, hedged <= requests / 10);
+  }
+
+  @Test public void lowerBoundUnderEstimateIsIgnored() {
+    HedgingPolicy policy = new HedgingPolicy(MILLIS);
+    policy.headersReceived(HOST, 50 * MILLIS);
+    policy.headersNotReceived(HOST, 10 * MILLIS);
+    assertEquals(50 * MILLIS, policy.delayNanos(HOST));
+  }
+
+  private static long fast(Random random) {
+    return (5 + random.nextInt(11)) * MILLIS;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import okhttp3.EventListener;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public final class RealInterceptorChainTest {
+  private final Request request = new Request.Builder().url("http://example.com/").build();
+
+  /** Each interceptor sees its own request before and after proceeding, on every attempt. */
+  @Test public void interceptorsKeepTheirPositionAcrossProceed() throws IOException {
+    final Request rewritten = request.newBuilder().header("Rewritten", "true").build();
+    final StringBuilder seen = new StringBuilder();
+    List<Interceptor> interceptors = Arrays.asList(
+        new Interceptor() {
+          @Override public Response intercept(Chain chain) throws IOException {
+            for (int attempt = 0; attempt < 2; attempt++) {
+              chain.proceed(chain.request());
+              assertSame(request, chain.request());
+            }
+            return chain.proceed(chain.request());
+          }
+        },
+        new Interceptor() {
+          @Override public Response intercept(Chain chain) throws IOException {
+            assertSame(request, chain.request());
+            Response response = chain.proceed(rewritten);
+            assertSame(request, chain.request());
+            return response;
+          }
+        },
+        new Interceptor() {
+          @Override public Response intercept(Chain chain) {
+            assertSame(rewritten, chain.request());
+            seen.append('.');
+            return new Response.Builder()
+                .request(chain.request())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .build();
+          }
+        });
+
+    RealInterceptorChain chain = new RealInterceptorChain(
+        interceptors, null, null, null, 0, request, null, EventListener.NONE);
+    Response response = chain.proceed(request);
+    assertSame(rewritten, response.request());
+    assertSame(request, chain.request());
+    assertEquals("...", seen.toString());
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Measures how many HTTP/2 exchanges per second threads can make over one connection with
+ * {@linkplain Http2Connection.Builder#coalesceWrites coalesced writes} and without. Each exchange
+ * sends a small request and reads a small response from an in-process server over loopback, so
+ * the cost is dominated by frame writes and socket flushes rather than by payloads.
+ *
+ * <p>This isn't a test. Run {@link #main} and compare the throughput of the two modes at each
+ * thread count.
+ */
+public final class Http2WriteCoalescingBenchmark {
+  static final int MAX_THREADS = 32;
+  static final long WARMUP_MILLIS = 1000L;
+  static final long MEASURE_MILLIS = 3000L;
+
+  static final List<Header> REQUEST_HEADERS = Arrays.asList(
+      new Header(Header.TARGET_METHOD, "GET"),
+      new Header(Header.TARGET_PATH, "/"),
+      new Header(Header.TARGET_AUTHORITY, "localhost"),
+      new Header(Header.TARGET_SCHEME, "http"));
+  static final List<Header> RESPONSE_HEADERS = Arrays.asList(
+      new Header(Header.RESPONSE_STATUS, "200"));
+
+  volatile boolean running;
+  volatile boolean measuring;
+
+  /** Returns the exchanges per second made by {@code threadCount} threads. */
+  double run(boolean coalesceWrites, int threadCount) throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Socket clientSocket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    Http2Connection server = new Http2Connection.Builder(false)
+        .socket(serverSocket.accept())
+        .listener(new Http2Connection.Listener() {
+          @Override public void onStream(Http2Stream stream) throws IOException {
+            stream.sendResponseHeaders(RESPONSE_HEADERS, true);
+            BufferedSink sink = Okio.buffer(stream.getSink());
+            sink.writeUtf8("ok");
+            sink.close();
+          }
+        })
+        .build();
+    serverSocket.close();
+    final Http2Connection client = new Http2Connection.Builder(true)
+        .socket(clientSocket)
+        .coalesceWrites(coalesceWrites)
+        .build();
+    server.start();
+    client.start();
+
+    final long[] counts = new long[threadCount];
+    final CountDownLatch started = new CountDownLatch(threadCount);
+    final CountDownLatch finished = new CountDownLatch(threadCount);
+    final Throwable[] failure = new Throwable[1];
+    running = true;
+
+    for (int t = 0; t < threadCount; t++) {
+      final int index = t;
+      new Thread("benchmark " + t) {
+        @Override public void run() {
+          started.countDown();
+          try {
+            long count = 0;
+            while (running) {
+              exchange(client);
+              if (measuring) count++;
+            }
+            counts[index] = count;
+          } catch (Throwable e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          } finally {
+            finished.countDown();
+          }
+        }
+      }.start();
+    }
+
+    started.await();
+    Thread.sleep(WARMUP_MILLIS);
+    measuring = true;
+    long start = System.nanoTime();
+    Thread.sleep(MEASURE_MILLIS);
+    measuring = false;
+    long elapsedNanos = System.nanoTime() - start;
+    running = false;
+    finished.await();
+    client.close();
+    server.close();
+
+    synchronized (failure) {
+      if (failure[0] != null) throw new AssertionError(failure[0]);
+    }
+
+    long total = 0;
+    for (int t = 0; t < threadCount; t++) {
+      total += counts[t];
+    }
+    return total * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+  }
+
+  void exchange(Http2Connection client) throws IOException {
+    Http2Stream stream = client.newStream(REQUEST_HEADERS, false);
+    stream.takeResponseHeaders();
+    Okio.buffer(stream.getSource()).readByteString();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Http2WriteCoalescingBenchmark benchmark = new Http2WriteCoalescingBenchmark();
+    System.out.println("threads\tdirect exchanges/s\tcoalesced exchanges/s");
+    for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+      System.out.printf("%d\t%.0f\t%.0f%n", threads,
+          benchmark.run(false, threads), benchmark.run(true, threads));
+    }
+  }
+}